@@ -3,7 +3,11 @@ package com.goticks;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 
-public abstract class AbstractMessage {
+import java.io.Serializable;
+
+// メッセージはジャーナルにも保存するためシリアライズ可能にする
+// チケット購入の経路（GetTickets -> Buy -> Tickets）のメッセージはリフレクションを使わずにtoStringを実装する
+public abstract class AbstractMessage implements Serializable {
   @Override
   public String toString() {
     return ReflectionToStringBuilder.toString(this, ToStringStyle.SHORT_PREFIX_STYLE);
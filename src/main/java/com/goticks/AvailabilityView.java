@@ -0,0 +1,83 @@
+package com.goticks;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// アクターシステムごとのイベント名 -> 残りチケット数の読み取り用のビュー
+// TicketSellerが在庫を変える度に書き込み、RestApiはアクターに問い合わせずにロックを取らずに読む（結果整合）
+// 条件付きGETのETagに使うバージョンも持つ
+public class AvailabilityView implements Extension {
+  private static final AvailabilityViewId ID = new AvailabilityViewId();
+
+  static class AvailabilityViewId extends AbstractExtensionId<AvailabilityView> {
+    @Override
+    public AvailabilityView createExtension(ExtendedActorSystem system) {
+      return new AvailabilityView();
+    }
+  }
+
+  static AvailabilityView get(ActorSystem system) {
+    return ID.get(system);
+  }
+
+  // イベント名 -> 上位32ビットがバージョン、下位32ビットが残りチケット数（1回のCASで両方を書き換える）
+  private final ConcurrentMap<String, AtomicLong> entries = new ConcurrentHashMap<>();
+  // イベント一覧のバージョン（BoxOfficeがビューを変える度に増やす）。再起動前のETagと一致しないように起動ごとのepochを付ける
+  private final AtomicLong catalogVersion = new AtomicLong();
+  private final long epoch = System.currentTimeMillis();
+
+  static long version(long entry) {
+    return entry >>> 32;
+  }
+
+  static int tickets(long entry) {
+    return (int) entry;
+  }
+
+  private static long entry(long version, int tickets) {
+    return version << 32 | (tickets & 0xffffffffL);
+  }
+
+  // 残りチケット数が変わった場合だけバージョンを上げる
+  // 既にあるイベントはカウンターを書き換えるだけにする（computeIfAbsentはキーがあってもロックを取るため）
+  void update(String event, int available) {
+    AtomicLong counter = entries.get(event);
+    if (counter == null) {
+      counter = entries.putIfAbsent(event, new AtomicLong(entry(1, available)));
+      if (counter == null)
+        return;
+    }
+    counter.updateAndGet(current -> tickets(current) == available ? current : entry(version(current) + 1, available));
+  }
+
+  void remove(String event) {
+    entries.remove(event);
+  }
+
+  OptionalInt get(String event) {
+    AtomicLong counter = entries.get(event);
+    return counter == null ? OptionalInt.empty() : OptionalInt.of(tickets(counter.get()));
+  }
+
+  // バージョンと残りチケット数を同時に読む（version() / tickets() で取り出す）
+  OptionalLong getEntry(String event) {
+    AtomicLong counter = entries.get(event);
+    return counter == null ? OptionalLong.empty() : OptionalLong.of(counter.get());
+  }
+
+  void catalogChanged() {
+    catalogVersion.incrementAndGet();
+  }
+
+  String catalogTag() {
+    return Long.toHexString(epoch) + "-" + catalogVersion.get();
+  }
+}
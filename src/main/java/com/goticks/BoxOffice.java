@@ -1,32 +1,98 @@
 package com.goticks;
 
-import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
 import akka.actor.Props;
+import akka.actor.Status;
+import akka.actor.Terminated;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.Replicator;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-
+import akka.persistence.*;
+import akka.routing.ConsistentHash;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.typesafe.config.Config;
+import scala.PartialFunction;
+import scala.runtime.BoxedUnit;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.*;
 import java.util.stream.*;
 
-import static akka.pattern.PatternsCS.ask;
-import static akka.pattern.PatternsCS.pipe;
-
-public class BoxOffice extends AbstractActor {
+public class BoxOffice extends AbstractPersistentActor {
   private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
   private final String msg = "    📩 {}";
 
   // propsの定義
-  public static Props props(Long timeout) {
-    return Props.create(BoxOffice.class, () -> new BoxOffice(timeout));
+  public static Props props(int shard, Long timeout) {
+    return props(shard, timeout, null);
   }
 
+  // sellerRegionを渡した場合は、TicketSellerを子として持たずにシャードリージョン経由でメッセージを送る
+  public static Props props(int shard, Long timeout, ActorRef sellerRegion) {
+    return Props.create(BoxOffice.class, () -> new BoxOffice(shard, timeout, sellerRegion))
+        .withMailbox("goticks.mailboxes.box-office");
+  }
+
+  private final int shard;
   private final Long timeout;
+  private final ActorRef sellerRegion;
+  // クラスターで分散データのうちこのシャードが受け持つイベントを選ぶのに使う（RestApiと同じ振り分け）
+  private final ConsistentHash<Integer> ring;
+  private final Duration availabilityInterval;
+  private final String sellerDispatcher;
+  private final int snapshotInterval;
+  private final int maxInFlight;
+  private final double admissionRate;
+  private final int admissionBurst;
+  private final Metrics metrics = Metrics.get(getContext().getSystem());
+  private final AvailabilityView view = AvailabilityView.get(getContext().getSystem());
+  private final Metrics.Histogram processing = metrics.processing("BoxOffice");
 
   // コンストラクタ
-  private BoxOffice(Long timeout) {
+  private BoxOffice(int shard, Long timeout, ActorRef sellerRegion) {
+    this.shard = shard;
     this.timeout = timeout;
+    this.sellerRegion = sellerRegion;
+    this.ring = sellerRegion == null ? null : RestApi.boxOfficeRing(getContext().getSystem().settings().config());
+    this.availabilityInterval = getContext().getSystem().settings().config()
+        .getDuration("goticks.box-office.availability-interval");
+    this.sellerDispatcher = getContext().getSystem().settings().config().getString("goticks.ticket-seller.dispatcher");
+    this.snapshotInterval = getContext().getSystem().settings().config()
+        .getInt("goticks.persistence.snapshot-interval");
+    Config admission = getContext().getSystem().settings().config().getConfig("goticks.box-office.admission");
+    // クラスターではTicketSellerが他のノードにいるので、処理中のBuyは数えない
+    if (sellerRegion != null && admission.getInt("max-in-flight") > 0)
+      log.warning("goticks.box-office.admission.max-in-flight is ignored in cluster mode");
+    this.maxInFlight = sellerRegion == null ? admission.getInt("max-in-flight") : 0;
+    this.admissionRate = admission.getDouble("rate");
+    this.admissionBurst = admission.getInt("burst");
+  }
+
+  // シャードごとにジャーナルを分ける（シャード数を変える場合はジャーナルを引き継げないので、BoxOfficeLayoutで固定する）
+  @Override
+  public String persistenceId() {
+    return "box-office-" + shard;
+  }
+
+  // クラスターでは各ノードに同じシャード番号のBoxOfficeがいるので、ジャーナルは使わない
+  // 販売中のイベントはTicketSeller自身が覚えていて、残りチケット数のビューは分散データから作る
+  @Override
+  public Recovery recovery() {
+    return sellerRegion == null ? super.recovery() : Recovery.none();
+  }
+
+  @Override
+  public void preStart() throws Exception {
+    super.preStart();
+    if (sellerRegion != null)
+      DistributedData.get(getContext().getSystem()).replicator()
+          .tell(new Replicator.Subscribe<>(SellerSharding.AVAILABILITY_KEY, getSelf()), getSelf());
   }
 
   // メッセージプロトコルの定義
@@ -61,7 +127,27 @@ public class BoxOffice extends AbstractActor {
     }
   }
 
+  // 名前順でafterより後のイベントを最大limit件返す（afterが空文字列の場合は先頭から）
   public static class GetEvents extends AbstractMessage {
+    private final String after;
+    private final int limit;
+
+    public GetEvents() {
+      this("", Integer.MAX_VALUE);
+    }
+
+    public GetEvents(String after, int limit) {
+      this.after = after;
+      this.limit = limit;
+    }
+
+    public String getAfter() {
+      return after;
+    }
+
+    public int getLimit() {
+      return limit;
+    }
   }
 
   public static class GetTickets extends AbstractMessage {
@@ -81,6 +167,82 @@ public class BoxOffice extends AbstractActor {
       return tickets;
     }
 
+    @Override
+    public String toString() {
+      return "BoxOffice.GetTickets[event=" + event + ",tickets=" + tickets + "]";
+    }
+  }
+
+  public static class HoldTickets extends AbstractMessage {
+    private final String event;
+    private final int tickets;
+
+    public HoldTickets(String event, int tickets) {
+      this.event = event;
+      this.tickets = tickets;
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public int getTickets() {
+      return tickets;
+    }
+  }
+
+  public static class ConfirmHold extends AbstractMessage {
+    private final String event;
+    private final long id;
+
+    public ConfirmHold(String event, long id) {
+      this.event = event;
+      this.id = id;
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public long getId() {
+      return id;
+    }
+  }
+
+  public static class ReleaseHold extends AbstractMessage {
+    private final String event;
+    private final long id;
+
+    public ReleaseHold(String event, long id) {
+      this.event = event;
+      this.id = id;
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public long getId() {
+      return id;
+    }
+  }
+
+  public static class ReturnTickets extends AbstractMessage {
+    private final String event;
+    private final List<TicketSeller.TicketRange> ranges;
+
+    public ReturnTickets(String event, List<TicketSeller.TicketRange> ranges) {
+      this.event = event;
+      this.ranges = Collections.unmodifiableList(ranges);
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public List<TicketSeller.TicketRange> getRanges() {
+      return ranges;
+    }
   }
 
   public static class CancelEvent extends AbstractMessage {
@@ -115,14 +277,140 @@ public class BoxOffice extends AbstractActor {
 
   public static class Events extends AbstractMessage {
     private final List<Event> events;
+    private final long staleness;
 
     public Events(List<Event> events) {
+      this(events, 0L);
+    }
+
+    public Events(List<Event> events, long staleness) {
       this.events = Collections.unmodifiableList(events);
+      this.staleness = staleness;
     }
 
     public List<Event> getEvents() {
       return events;
     }
+
+    // ビューが最後に更新されてからの経過時間（ミリ秒）
+    @JsonIgnore
+    public long getStaleness() {
+      return staleness;
+    }
+  }
+
+  // TicketSellerから通知される残りチケット数
+  public static class TicketsAvailable extends AbstractMessage {
+    private final String name;
+    private final int tickets;
+    private final long timestamp;
+
+    public TicketsAvailable(String name, int tickets, long timestamp) {
+      this.name = name;
+      this.tickets = tickets;
+      this.timestamp = timestamp;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getTickets() {
+      return tickets;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+  }
+
+  // しばらく使われていないTicketSellerからの停止の依頼（状態はスナップショットに保存済み）
+  // ticketsは停止する時点の残りチケット数（停止中のイベントの一覧を復元後も返せるようにジャーナルに残す）
+  public static class Passivate extends AbstractMessage {
+    private final String name;
+    private final int tickets;
+
+    public Passivate(String name, int tickets) {
+      this.name = name;
+      this.tickets = tickets;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getTickets() {
+      return tickets;
+    }
+  }
+
+  // Passivateを受け付けなかった場合の返信（TicketSellerは動き続け、また一定時間後に停止を依頼する）
+  public static class PassivateRefused extends AbstractMessage {
+    private final String name;
+
+    public PassivateRefused(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  // TicketSellerから通知される、返信し終えたBuyの数（処理中のBuyの数を数えるのに使う）
+  public static class BuysCompleted extends AbstractMessage {
+    private final String name;
+    private final int count;
+
+    public BuysCompleted(String name, int count) {
+      this.name = name;
+      this.count = count;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getCount() {
+      return count;
+    }
+  }
+
+  // 再起動したTicketSellerから通知される（まとめて処理する前のBuyや保存中のBuyは返信されないまま失われた）
+  public static class SellerRestarted extends AbstractMessage {
+    private final String name;
+
+    public SellerRestarted(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+
+  // 流量制限で受け付けなかったGetTickets（askの失敗として返す）
+  public static class AdmissionRejected extends RuntimeException {
+    // 1秒あたりの上限を超えた / 処理中のBuyが上限に達した
+    public static final String RATE_LIMITED = "rate-limited";
+    public static final String IN_FLIGHT_LIMITED = "in-flight-limited";
+
+    private final String reason;
+    private final long retryAfterSeconds;
+
+    public AdmissionRejected(String event, String reason, long retryAfterSeconds) {
+      super(event + " " + reason, null, false, false);
+      this.reason = reason;
+      this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public String getReason() {
+      return reason;
+    }
+
+    public long getRetryAfterSeconds() {
+      return retryAfterSeconds;
+    }
   }
 
   public abstract static class EventResponse extends AbstractMessage {
@@ -144,46 +432,362 @@ public class BoxOffice extends AbstractActor {
   }
   // <------------------------------------------
 
-  private ActorRef createTicketSeller(String name) {
-    return getContext().actorOf(TicketSeller.props(name), name);
+  // ジャーナルに保存するイベントとスナップショット
+  // ------------------------------------------>
+  static class SellerCreated extends AbstractMessage {
+    private final String name;
+    private final int tickets;
+    private final String sellerId;
+
+    SellerCreated(String name, int tickets, String sellerId) {
+      this.name = name;
+      this.tickets = tickets;
+      this.sellerId = sellerId;
+    }
+  }
+
+  static class SellerCancelled extends AbstractMessage {
+    private final String name;
+
+    SellerCancelled(String name) {
+      this.name = name;
+    }
+  }
+
+  // TicketSellerを停止した時の残りチケット数
+  static class SellerPassivated extends AbstractMessage {
+    private final String name;
+    private final int tickets;
+
+    SellerPassivated(String name, int tickets) {
+      this.name = name;
+      this.tickets = tickets;
+    }
+  }
+
+  // 停止したTicketSellerを起動し直した（残りチケット数はTicketSellerが持つ）
+  static class SellerActivated extends AbstractMessage {
+    private final String name;
+
+    SellerActivated(String name) {
+      this.name = name;
+    }
+  }
+
+  // passivatedを加える前のスナップショットも読めるように、その時のserialVersionUIDに固定する（読んだ場合はnull）
+  static class Snapshot extends AbstractMessage {
+    private static final long serialVersionUID = -1050394688262023474L;
+
+    private final List<SellerCreated> sellers;
+    private final List<SellerPassivated> passivated;
+
+    Snapshot(List<SellerCreated> sellers, List<SellerPassivated> passivated) {
+      this.sellers = sellers;
+      this.passivated = passivated;
+    }
+  }
+  // <------------------------------------------
+
+  // 販売中のイベント（ジャーナルから復元する状態）
+  private final Map<String, SellerCreated> sellers = new HashMap<>();
+  // 停止中のTicketSellerと、停止した時の残りチケット数（ジャーナルから復元する状態）
+  // 復元後はこれで一覧を作り、TicketSellerは最初に使う時に起動する
+  private final Map<String, SellerPassivated> passivated = new HashMap<>();
+
+  // イベント名 -> 残りチケット数のビュー（GetEventsはここから応答する）
+  private final NavigableMap<String, TicketsAvailable> availability = new TreeMap<>();
+
+  // イベントごとの流量制限の状態
+  private static class Admission {
+    private final TokenBucket bucket;
+    private int inFlight = 0;
+
+    Admission(TokenBucket bucket) {
+      this.bucket = bucket;
+    }
+  }
+
+  private final Map<String, Admission> admissions = new HashMap<>();
+
+  // 停止中のTicketSeller（停止するまで、そのイベント宛てのメッセージはスタッシュしておく）
+  private final Set<String> passivating = new HashSet<>();
+
+  private final long recoveryStarted = System.nanoTime();
+  private int replayed = 0;
+
+  // 同じ名前のイベントを作り直しても過去の履歴を引き継がないように、TicketSellerごとに別のIDを使う
+  private ActorRef createTicketSeller(SellerCreated created) {
+    addEvent(created.name, created.tickets);
+    return startTicketSeller(created);
+  }
+
+  // 一覧と流量制限にイベントを加える（TicketSellerは起動しない）
+  private void addEvent(String name, int tickets) {
+    availability.put(name, new TicketsAvailable(name, tickets, System.currentTimeMillis()));
+    view.catalogChanged();
+    admissions.put(name, newAdmission());
+  }
+
+  private Admission newAdmission() {
+    return new Admission(admissionRate > 0 ? new TokenBucket(admissionRate, admissionBurst, System.nanoTime()) : null);
+  }
+
+  // イベント名にはアクター名に使えない文字（空白など）も使えるので、URLエンコードして子の名前にする（シャーディングと同じ）
+  // メッセージごとに呼ばれるので、エンコードで変わらない名前（英数字と - _ . *）はそのまま返す
+  private static String childName(String event) {
+    if (isUnreserved(event))
+      return event;
+
+    try {
+      return URLEncoder.encode(event, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static boolean isUnreserved(String event) {
+    for (int i = 0; i < event.length(); i++) {
+      char c = event.charAt(i);
+      if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' ||
+          c == '-' || c == '_' || c == '.' || c == '*'))
+        return false;
+    }
+    return true;
+  }
+
+  // 停止したTicketSellerはジャーナル（とスナップショット）から状態を復元して起動し直す
+  // 停止した時に処理中のBuyの数を戻せるように、全てのTicketSellerを監視する
+  private ActorRef startTicketSeller(SellerCreated created) {
+    ActorRef seller = getContext().actorOf(TicketSeller.props(created.name, created.sellerId, availabilityInterval)
+        .withDispatcher(sellerDispatcher), childName(created.name));
+    getContext().watch(seller);
+    return seller;
+  }
+
+  // 返信されないまま失われたBuyがあるので、処理中の数を0に戻す
+  private void resetInFlight(String name) {
+    Admission admission = admissions.get(name);
+    if (admission != null && admission.inFlight > 0) {
+      log.debug("{} in-flight buys reset from {}", name, admission.inFlight);
+      admission.inFlight = 0;
+    }
   }
 
   private void create(String name, int tickets) {
-    ActorRef eventTickets = createTicketSeller(name);
-    List<TicketSeller.Ticket> newTickets = IntStream.rangeClosed(1, tickets)
-        .mapToObj(ticketId -> (new TicketSeller.Ticket(ticketId))).collect(Collectors.toList());
+    String sellerId = "ticket-seller-" + UUID.randomUUID();
+    persist(new SellerCreated(name, tickets, sellerId), created -> {
+      sellers.put(name, created);
+      saveSnapshotIfNeeded();
+      // TicketSellerがAddを保存するより先に、作成したイベントを読めるようにする
+      view.update(name, tickets);
+
+      ActorRef eventTickets = createTicketSeller(created);
+      List<TicketSeller.TicketRange> newTickets = Collections.singletonList(new TicketSeller.TicketRange(1, tickets));
+
+      eventTickets.tell(new TicketSeller.Add(newTickets), getSelf());
+      getContext().sender().tell(new EventCreated(new Event(name, tickets)), getSelf());
+    });
+  }
+
+  // キャンセル処理中のTicketSellerは除く。停止（パッシベーション）したTicketSellerは起動し直す
+  private Optional<ActorRef> findSeller(String name) {
+    SellerCreated created = sellers.get(name);
+    if (created == null)
+      return Optional.empty();
+
+    Optional<ActorRef> child = getContext().findChild(childName(name));
+    if (child.isPresent())
+      return child;
+
+    // 停止中の残りチケット数は、起動したTicketSellerが変えるので使わなくなる
+    if (passivated.remove(name) != null)
+      persist(new SellerActivated(name), activated -> saveSnapshotIfNeeded());
+    return Optional.of(startTicketSeller(created));
+  }
+
+  // TicketSellerにメッセージを転送する（イベントがなければfalse）
+  // クラスターではイベントの有無はTicketSellerが判断するので、常にシャードリージョンに送る
+  private boolean forwardToSeller(String name, Object message) {
+    if (sellerRegion != null) {
+      sellerRegion.forward(new SellerSharding.Envelope(name, message), getContext());
+      return true;
+    }
+
+    Optional<ActorRef> child = findSeller(name);
+    child.ifPresent(seller -> seller.forward(message, getContext()));
+    return child.isPresent();
+  }
+
+  private boolean hasSeller(String name) {
+    return sellerRegion != null || findSeller(name).isPresent();
+  }
+
+  // 分散データの残りチケット数のうち、このシャードが受け持つイベントでビューを作り直す
+  private void availabilityChanged(LWWMap<String, Integer> replicated) {
+    Map<String, Integer> entries = replicated.getEntries();
+    long now = System.currentTimeMillis();
+    availability.keySet().stream().filter(name -> !entries.containsKey(name)).forEach(view::remove);
+    if (availability.keySet().removeIf(name -> !entries.containsKey(name)))
+      view.catalogChanged();
+    admissions.keySet().retainAll(availability.keySet());
+    entries.forEach((name, tickets) -> {
+      if (ring.nodeFor(name) != shard)
+        return;
+
+      TicketsAvailable previous = availability.get(name);
+      if (previous == null || previous.tickets != tickets) {
+        availability.put(name, new TicketsAvailable(name, tickets, now));
+        view.update(name, tickets);
+        view.catalogChanged();
+      }
+      admissions.computeIfAbsent(name, added -> newAdmission());
+    });
+  }
+
+  // 停止中のTicketSeller宛てのメッセージか
+  private boolean forPassivatingSeller(Object message) {
+    if (passivating.isEmpty())
+      return false;
+
+    String name = message instanceof CreateEvent ? ((CreateEvent) message).name :
+        message instanceof GetTickets ? ((GetTickets) message).event :
+        message instanceof GetEvent ? ((GetEvent) message).name :
+        message instanceof CancelEvent ? ((CancelEvent) message).name :
+        message instanceof ReturnTickets ? ((ReturnTickets) message).event :
+        message instanceof HoldTickets ? ((HoldTickets) message).event :
+        message instanceof ConfirmHold ? ((ConfirmHold) message).event :
+        message instanceof ReleaseHold ? ((ReleaseHold) message).event : null;
+    return name != null && passivating.contains(name);
+  }
+
+  // ビュー上で売り切れのイベントはTicketSellerに渡さずに応答する
+  private boolean soldOut(String name) {
+    TicketsAvailable available = availability.get(name);
+    return available != null && available.tickets == 0;
+  }
+
+  // 1秒あたりの上限と処理中のBuyの上限を確認し、受け付ける場合は処理中の数に加える
+  private Optional<AdmissionRejected> admit(String name) {
+    Admission admission = admissions.get(name);
+    if (admission == null)
+      return Optional.empty();
+
+    if (maxInFlight > 0 && admission.inFlight >= maxInFlight)
+      return Optional.of(reject(name, AdmissionRejected.IN_FLIGHT_LIMITED, 1));
+
+    long now = System.nanoTime();
+    if (admission.bucket != null && !admission.bucket.tryAcquire(now)) {
+      long retryAfter = Math.max(1, (admission.bucket.nanosUntilAvailable(now) + 999999999L) / 1000000000L);
+      return Optional.of(reject(name, AdmissionRejected.RATE_LIMITED, retryAfter));
+    }
+
+    if (maxInFlight > 0)
+      admission.inFlight++;
+    return Optional.empty();
+  }
+
+  private AdmissionRejected reject(String name, String reason, long retryAfterSeconds) {
+    metrics.rejected(reason).increment();
+    if (log.isDebugEnabled())
+      log.debug("{} rejected: {}", name, reason);
+    return new AdmissionRejected(name, reason, retryAfterSeconds);
+  }
+
+  private void saveSnapshotIfNeeded() {
+    if (lastSequenceNr() % snapshotInterval == 0)
+      saveSnapshot(new Snapshot(new ArrayList<>(sellers.values()), new ArrayList<>(passivated.values())));
+  }
 
-    eventTickets.tell(new TicketSeller.Add(newTickets), getSelf());
-    getContext().sender().tell(new EventCreated(new Event(name, tickets)), getSelf());
+  private Events getEvents(GetEvents request) {
+    Collection<TicketsAvailable> page = availability.tailMap(request.after, false).values();
+    List<Event> events = page.stream()
+        .limit(request.limit)
+        .map(available -> new Event(available.name, available.tickets))
+        .collect(Collectors.toList());
+
+    long oldest = page.stream()
+        .limit(request.limit)
+        .mapToLong(TicketsAvailable::getTimestamp)
+        .min()
+        .orElse(System.currentTimeMillis());
+    // 変更の度に通知される場合はビューが常に最新
+    long staleness = availabilityInterval.isZero() ? 0L : System.currentTimeMillis() - oldest;
+
+    return new Events(events, staleness);
   }
 
-  @SuppressWarnings("unchecked")
-  private CompletionStage<Events> getEvents() {
-    List<CompletableFuture<Optional<Event>>> children = new ArrayList<>();
-    getContext().getChildren().forEach (child ->
-      children.add(ask(getSelf(), new GetEvent(child.path().name()), timeout)
-          .thenApply(event -> (Optional<Event>) event).toCompletableFuture()));
+  // メッセージ1件の処理時間を記録する
+  @Override
+  public void aroundReceive(PartialFunction<Object, BoxedUnit> receive, Object msg) {
+    long started = System.nanoTime();
+    super.aroundReceive(receive, msg);
+    processing.record(System.nanoTime() - started);
+  }
 
-    return CompletableFuture
-        .allOf(children.toArray(new CompletableFuture[0]))
-        .thenApply(ignored -> {
-          List<Event> events = children.stream()
-              .map(CompletableFuture::join)
-              .map(Optional::get)
-              .collect(Collectors.toList());
-          return new Events(events);
-        });
+  // ジャーナルからの復元（TicketSellerは復元が終わってから起動する）
+  // 停止中だったTicketSellerは起動せず、停止した時の残りチケット数で一覧を作る（最初に使う時にfindSellerが起動する）
+  // 停止せずに止まったTicketSellerは残りチケット数が分からないので起動する
+  @Override
+  public Receive createReceiveRecover() {
+    return receiveBuilder()
+        .match(SnapshotOffer.class, offer -> {
+          Snapshot snapshot = (Snapshot) offer.snapshot();
+          snapshot.sellers.forEach(created -> sellers.put(created.name, created));
+          if (snapshot.passivated != null)
+            snapshot.passivated.forEach(stopped -> passivated.put(stopped.name, stopped));
+        })
+        .match(SellerCreated.class, created -> {
+          replayed++;
+          sellers.put(created.name, created);
+          passivated.remove(created.name);
+        })
+        .match(SellerCancelled.class, cancelled -> {
+          replayed++;
+          sellers.remove(cancelled.name);
+          passivated.remove(cancelled.name);
+        })
+        .match(SellerPassivated.class, stopped -> {
+          replayed++;
+          passivated.put(stopped.name, stopped);
+        })
+        .match(SellerActivated.class, activated -> {
+          replayed++;
+          passivated.remove(activated.name);
+        })
+        .match(RecoveryCompleted.class, completed -> {
+          sellers.values().forEach(created -> {
+            SellerPassivated stopped = passivated.get(created.name);
+            if (stopped != null) {
+              addEvent(created.name, stopped.tickets);
+              view.update(created.name, stopped.tickets);
+            } else {
+              createTicketSeller(created);
+            }
+          });
+          log.info("{} recovered in {} ms ({} events replayed, {} events on sale)", persistenceId(),
+              (System.nanoTime() - recoveryStarted) / 1000000, replayed, sellers.size());
+          if (!passivated.isEmpty())
+            log.info("{} left {} passivated ticket sellers stopped", persistenceId(), passivated.size());
+        })
+        .build();
   }
 
   @Override
   public Receive createReceive() {
 
     return receiveBuilder()
+        .match(Object.class, this::forPassivatingSeller, message -> stash())
         .match(CreateEvent.class, createEvent -> {
           log.debug(msg, createEvent);
 
-          Optional<ActorRef> child = getContext().findChild(createEvent.name);
-          if (child.isPresent())
+          if (sellerRegion != null) {
+            forwardToSeller(createEvent.name, new TicketSeller.Create(createEvent.tickets));
+            return;
+          }
+
+          // 停止（パッシベーション）したTicketSellerは子にいないが、イベントはある
+          // キャンセル処理中のTicketSellerは子に残っているので、同じ名前ではまだ作れない
+          if (sellers.containsKey(createEvent.name) || getContext().findChild(childName(createEvent.name)).isPresent())
             getContext().sender().tell(new EventExists(), self());
           else
             create(createEvent.name, createEvent.tickets);
@@ -191,35 +795,139 @@ public class BoxOffice extends AbstractActor {
         .match(GetTickets.class, getTickets -> {
           log.debug(msg, getTickets);
 
-          Optional<ActorRef> child = getContext().findChild(getTickets.event);
-          if (child.isPresent())
-            child.get().forward(new TicketSeller.Buy(getTickets.tickets), getContext());
-          else
+          if (!hasSeller(getTickets.event) || soldOut(getTickets.event)) {
             getContext().sender().tell(new TicketSeller.Tickets(getTickets.event), getSelf());
+            return;
+          }
+
+          Optional<AdmissionRejected> rejected = admit(getTickets.event);
+          if (rejected.isPresent())
+            getContext().sender().tell(new Status.Failure(rejected.get()), getSelf());
+          else
+            forwardToSeller(getTickets.event, TicketSeller.Buy.of(getTickets.tickets));
+        })
+        .match(HoldTickets.class, holdTickets -> {
+          log.debug(msg, holdTickets);
+
+          if (!hasSeller(holdTickets.event) || soldOut(holdTickets.event)) {
+            getContext().sender().tell(new TicketSeller.Tickets(holdTickets.event), getSelf());
+            return;
+          }
+
+          Optional<AdmissionRejected> rejected = admit(holdTickets.event);
+          if (rejected.isPresent())
+            getContext().sender().tell(new Status.Failure(rejected.get()), getSelf());
+          else
+            forwardToSeller(holdTickets.event, new TicketSeller.Hold(holdTickets.tickets));
+        })
+        .match(ConfirmHold.class, confirmHold -> {
+          log.debug(msg, confirmHold);
+
+          if (!forwardToSeller(confirmHold.event, new TicketSeller.Confirm(confirmHold.id)))
+            getContext().sender().tell(Optional.empty(), getSelf());
+        })
+        .match(ReleaseHold.class, releaseHold -> {
+          log.debug(msg, releaseHold);
+
+          if (!forwardToSeller(releaseHold.event, new TicketSeller.Release(releaseHold.id)))
+            getContext().sender().tell(Optional.empty(), getSelf());
+        })
+        .match(ReturnTickets.class, returnTickets -> {
+          log.debug(msg, returnTickets);
+
+          forwardToSeller(returnTickets.event, new TicketSeller.Return(returnTickets.ranges));
         })
         .match(GetEvent.class, getEvent -> {
           log.debug(msg, getEvent);
 
-          Optional<ActorRef> child = getContext().findChild(getEvent.name);
-          if (child.isPresent())
-            child.get().forward(new TicketSeller.GetEvent(), getContext());
-          else
+          if (!forwardToSeller(getEvent.name, new TicketSeller.GetEvent()))
             getContext().sender().tell(Optional.empty(), getSelf());
         })
         .match(GetEvents.class, getEvents -> {
           log.debug(msg, getEvents);
 
-          pipe(getEvents(), getContext().dispatcher()).to(sender());
+          getContext().sender().tell(getEvents(getEvents), getSelf());
+        })
+        .match(TicketsAvailable.class, available -> {
+          log.debug(msg, available);
+
+          // 一覧の内容が変わる場合だけカタログのバージョンを上げる
+          TicketsAvailable previous = availability.get(available.name);
+          if (previous != null) {
+            availability.put(available.name, available);
+            if (previous.tickets != available.tickets)
+              view.catalogChanged();
+          }
+        })
+        .match(Replicator.Changed.class, changed -> {
+          @SuppressWarnings("unchecked")
+          LWWMap<String, Integer> replicated = (LWWMap<String, Integer>) changed.dataValue();
+          availabilityChanged(replicated);
         })
+        .match(Passivate.class, passivate -> {
+          log.debug(msg, passivate);
+
+          // キャンセル処理中などでなければ、届いているメッセージを処理させてから停止させる
+          Optional<ActorRef> child = getContext().findChild(childName(passivate.name));
+          if (sellers.containsKey(passivate.name) && child.equals(Optional.of(getContext().sender()))) {
+            passivating.add(passivate.name);
+            persist(new SellerPassivated(passivate.name, passivate.tickets), stopped -> {
+              passivated.put(stopped.name, stopped);
+              saveSnapshotIfNeeded();
+              child.get().tell(new TicketSeller.Stop(), getSelf());
+            });
+          } else {
+            getContext().sender().tell(new PassivateRefused(passivate.name), getSelf());
+          }
+        })
+        .match(Terminated.class, terminated -> {
+          String name = URLDecoder.decode(terminated.actor().path().name(), "UTF-8");
+          // 停止（パッシベーション、保存の失敗、キャンセル）したTicketSellerが返信していないBuyは返ってこない
+          // 同じ名前で作り直したTicketSellerが既にいる場合は、その分を数えているので戻さない
+          if (!getContext().findChild(childName(name)).isPresent())
+            resetInFlight(name);
+          if (passivating.remove(name)) {
+            metrics.passivatedSellers().increment();
+            log.debug("{} passivated", name);
+            unstashAll();
+          }
+        })
+        .match(BuysCompleted.class, completed -> {
+          Admission admission = admissions.get(completed.name);
+          if (admission != null)
+            admission.inFlight = Math.max(0, admission.inFlight - completed.count);
+        })
+        .match(SellerRestarted.class, restarted -> resetInFlight(restarted.name))
         .match(CancelEvent.class, cancelEvent -> {
           log.debug(msg, cancelEvent);
 
-          Optional<ActorRef> child = getContext().findChild(cancelEvent.name);
-          if (child.isPresent())
-            child.get().forward(new TicketSeller.Cancel(), getContext());
-          else
+          // クラスターでは分散データからの削除を待たずにビューから外す
+          if (sellerRegion != null) {
+            availability.remove(cancelEvent.name);
+            view.catalogChanged();
+            admissions.remove(cancelEvent.name);
+            view.remove(cancelEvent.name);
+            forwardToSeller(cancelEvent.name, new TicketSeller.Cancel());
+            return;
+          }
+
+          Optional<ActorRef> child = findSeller(cancelEvent.name);
+          if (child.isPresent()) {
+            persist(new SellerCancelled(cancelEvent.name), cancelled -> {
+              sellers.remove(cancelled.name);
+              availability.remove(cancelled.name);
+              view.catalogChanged();
+              admissions.remove(cancelled.name);
+              saveSnapshotIfNeeded();
+              child.get().forward(new TicketSeller.Cancel(), getContext());
+            });
+          } else
             getContext().sender().tell(Optional.empty(), getSelf());
         })
+        .match(SaveSnapshotSuccess.class, success ->
+            deleteSnapshots(SnapshotSelectionCriteria.create(success.metadata().sequenceNr() - 1, Long.MAX_VALUE)))
+        .match(SaveSnapshotFailure.class, failure ->
+            log.warning("{} failed to save snapshot: {}", persistenceId(), failure.cause()))
         .build();
   }
 }
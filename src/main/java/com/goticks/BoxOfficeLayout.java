@@ -0,0 +1,107 @@
+package com.goticks;
+
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.persistence.AbstractPersistentActor;
+
+// BoxOfficeのシャード数と仮想ノード数をジャーナルに記録する
+// BoxOfficeのジャーナル（box-office-N）はイベント名をコンシステントハッシュで振り分けた結果なので、
+// 再起動時にシャード数が変わると保存済みのイベントが別のシャードに振り分けられて見つからなくなる
+// 初回の起動で決まったシャード数を記録し、以降の起動ではそれを使う（設定と食い違う場合は起動を止める）
+public class BoxOfficeLayout extends AbstractPersistentActor {
+  private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+
+  // propsの定義
+  public static Props props() {
+    return Props.create(BoxOfficeLayout.class, BoxOfficeLayout::new);
+  }
+
+  @Override
+  public String persistenceId() {
+    return "box-office-layout";
+  }
+
+  // メッセージプロトコルの定義
+  // ------------------------------------------>
+  // configuredは goticks.box-office.shards の値（0の場合は記録済みのシャード数、なければderivedを使う）
+  public static class Resolve extends AbstractMessage {
+    private final int configured;
+    private final int derived;
+    private final int virtualNodesFactor;
+
+    public Resolve(int configured, int derived, int virtualNodesFactor) {
+      this.configured = configured;
+      this.derived = derived;
+      this.virtualNodesFactor = virtualNodesFactor;
+    }
+
+    public int getConfigured() {
+      return configured;
+    }
+
+    public int getDerived() {
+      return derived;
+    }
+
+    public int getVirtualNodesFactor() {
+      return virtualNodesFactor;
+    }
+  }
+
+  // 返信とジャーナルに保存するイベント
+  public static class Layout extends AbstractMessage {
+    private final int shards;
+    private final int virtualNodesFactor;
+
+    public Layout(int shards, int virtualNodesFactor) {
+      this.shards = shards;
+      this.virtualNodesFactor = virtualNodesFactor;
+    }
+
+    public int getShards() {
+      return shards;
+    }
+
+    public int getVirtualNodesFactor() {
+      return virtualNodesFactor;
+    }
+  }
+  // <------------------------------------------
+
+  private Layout recorded = null;
+
+  @Override
+  public Receive createReceiveRecover() {
+    return receiveBuilder()
+        .match(Layout.class, layout -> recorded = layout)
+        .build();
+  }
+
+  @Override
+  public Receive createReceive() {
+    return receiveBuilder()
+        .match(Resolve.class, resolve -> {
+          if (recorded == null) {
+            Layout layout = new Layout(resolve.configured > 0 ? resolve.configured : resolve.derived, resolve.virtualNodesFactor);
+            persist(layout, persisted -> {
+              recorded = persisted;
+              log.info("BoxOffice layout recorded: {} shards, virtual-nodes-factor {}", persisted.shards, persisted.virtualNodesFactor);
+              getSender().tell(persisted, getSelf());
+            });
+          } else if (resolve.configured > 0 && resolve.configured != recorded.shards) {
+            getSender().tell(new Status.Failure(new IllegalStateException(
+                "goticks.box-office.shards = " + resolve.configured + " but the journal was written with " +
+                    recorded.shards + " shards")), getSelf());
+          } else if (resolve.virtualNodesFactor != recorded.virtualNodesFactor) {
+            getSender().tell(new Status.Failure(new IllegalStateException(
+                "goticks.box-office.virtual-nodes-factor = " + resolve.virtualNodesFactor +
+                    " but the journal was written with " + recorded.virtualNodesFactor)), getSelf());
+          } else {
+            getSender().tell(recorded, getSelf());
+          }
+        })
+        .build();
+  }
+}
@@ -0,0 +1,215 @@
+package com.goticks;
+
+import akka.NotUsed;
+import akka.http.javadsl.model.MediaType;
+import akka.http.javadsl.model.MediaTypes;
+import akka.japi.pf.PFBuilder;
+import akka.stream.Graph;
+import akka.stream.SourceShape;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.stream.javadsl.Source;
+import akka.stream.scaladsl.Framing.FramingException;
+import akka.util.ByteString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+
+// POST /events/ で受け取ったNDJSON / CSVのイベントをまとめて作成する
+// アップロードを1行ずつ読みながら最大parallelism件ずつ並行して作成し、結果も1行ずつNDJSONで返す
+// （読み終わった行は保持しないので、メモリ使用量はアップロードの大きさによらない）
+//
+// 返す行:
+//   {"line":3,"name":"RHCP","error":"RHCP exists already."}                     作成できなかった行
+//   {"progress":{"rows":1000,"created":998,"failed":2,"rowsPerSecond":850}}     progressEvery行ごと
+//   {"done":{"rows":1234,"created":1230,"failed":4,"rowsPerSecond":870,"elapsedMillis":1418}}
+class EventImport {
+  enum Format { NDJSON, CSV }
+
+  private static final ObjectReader JSON = new ObjectMapper().readerFor(JsonNode.class);
+
+  private final int parallelism;
+  private final int progressEvery;
+  private final int maxLineLength;
+
+  EventImport(Config config) {
+    this.parallelism = config.getInt("parallelism");
+    this.progressEvery = config.getInt("progress-every");
+    this.maxLineLength = config.getInt("max-line-length");
+  }
+
+  // Content-Typeから形式を選ぶ（application/x-ndjson / text/csv）
+  static Optional<Format> format(MediaType mediaType) {
+    if (mediaType.mainType().equals("application") && mediaType.subType().equals("x-ndjson"))
+      return Optional.of(Format.NDJSON);
+    if (mediaType.mainType().equals(MediaTypes.TEXT_CSV.mainType()) && mediaType.subType().equals(MediaTypes.TEXT_CSV.subType()))
+      return Optional.of(Format.CSV);
+    return Optional.empty();
+  }
+
+  // 1行分の作成結果（errorがnullなら作成できた）
+  private static class Result {
+    private static final Result END = new Result(0, null, null);
+
+    private final long line;
+    private final String name;
+    private final String error;
+
+    Result(long line, String name, String error) {
+      this.line = line;
+      this.name = name;
+      this.error = error;
+    }
+  }
+
+  // 読み取った行（errorがnullでなければ作成せずに失敗として返す）
+  private static class Row {
+    private final long line;
+    private final String name;
+    private final int tickets;
+    private final String error;
+
+    Row(long line, String name, int tickets, String error) {
+      this.line = line;
+      this.name = name;
+      this.tickets = tickets;
+      this.error = error;
+    }
+  }
+
+  // createで1行ずつイベントを作成し、結果の行をNDJSONで流す
+  Source<ByteString, Object> run(Source<ByteString, Object> data, Format format,
+                                 BiFunction<String, Integer, CompletionStage<BoxOffice.EventResponse>> create) {
+    return data
+        .via(Framing.delimiter(ByteString.fromString("\n"), maxLineLength, FramingTruncation.ALLOW))
+        .map(ByteString::utf8String)
+        .zipWithIndex()
+        .mapConcat(line -> parse(format, line.second() + 1, line.first().trim()))
+        // 長すぎる行があった場合はそこで読むのをやめ、それまでの結果を返す
+        // （作成の前で止めるので、作成中の行は終わるのを待ってまとめに数える）
+        .recoverWithRetries(1, new PFBuilder<Throwable, Graph<SourceShape<Row>, NotUsed>>()
+            .match(FramingException.class, e -> Source.single(
+                new Row(0, null, 0, "line longer than " + maxLineLength + " bytes, import stopped")))
+            .build())
+        .mapAsyncUnordered(parallelism, row -> row.error != null ?
+            CompletableFuture.completedFuture(new Result(row.line, row.name, row.error)) :
+            create(create, row))
+        .concat(Source.single(Result.END))
+        .statefulMapConcat(() -> {
+          Progress progress = new Progress(System.nanoTime());
+          return progress::record;
+        })
+        .map(line -> ByteString.fromString(line + "\n"));
+  }
+
+  private static CompletionStage<Result> create(BiFunction<String, Integer, CompletionStage<BoxOffice.EventResponse>> create, Row row) {
+    return create.apply(row.name, row.tickets).handle((response, failure) -> {
+      if (failure != null) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        return new Result(row.line, row.name, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+      }
+      if (response instanceof BoxOffice.EventExists)
+        return new Result(row.line, row.name, row.name + " exists already.");
+      return new Result(row.line, row.name, null);
+    });
+  }
+
+  // 空行とCSVの見出し行は読み飛ばす
+  private List<Row> parse(Format format, long line, String text) {
+    if (text.isEmpty() || (format == Format.CSV && line == 1 && text.equalsIgnoreCase("name,tickets")))
+      return Collections.emptyList();
+    return Collections.singletonList(format == Format.CSV ? parseCsv(line, text) : parseNdjson(line, text));
+  }
+
+  // 名前にカンマを含められるように、最後のカンマで名前とチケット数に分ける
+  private static Row parseCsv(long line, String text) {
+    int comma = text.lastIndexOf(',');
+    if (comma < 0)
+      return new Row(line, null, 0, "expected name,tickets");
+    String name = text.substring(0, comma).trim();
+    if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\""))
+      name = name.substring(1, name.length() - 1).replace("\"\"", "\"");
+    return row(line, name, text.substring(comma + 1).trim());
+  }
+
+  private static Row parseNdjson(long line, String text) {
+    JsonNode node;
+    try {
+      node = JSON.readValue(text);
+    } catch (IOException e) {
+      return new Row(line, null, 0, "invalid JSON");
+    }
+    JsonNode name = node.get("name");
+    JsonNode tickets = node.get("tickets");
+    if (name == null || !name.isTextual() || tickets == null)
+      return new Row(line, null, 0, "expected {\"name\":...,\"tickets\":...}");
+    return row(line, name.asText(), tickets.asText());
+  }
+
+  private static Row row(long line, String name, String tickets) {
+    if (name.isEmpty())
+      return new Row(line, null, 0, "empty name");
+    try {
+      int count = Integer.parseInt(tickets);
+      if (count <= 0)
+        return new Row(line, name, 0, "tickets must be positive");
+      return new Row(line, name, count, null);
+    } catch (NumberFormatException e) {
+      return new Row(line, name, 0, "invalid tickets: " + tickets);
+    }
+  }
+
+  // 結果を数え、失敗した行と途中経過、最後にまとめを返す（1つのストリームの中だけで使う）
+  private class Progress {
+    private final long started;
+    private long rows = 0;
+    private long failed = 0;
+
+    Progress(long started) {
+      this.started = started;
+    }
+
+    List<String> record(Result result) {
+      if (result == Result.END)
+        return Collections.singletonList("{\"done\":" + counts(true) + "}");
+
+      List<String> lines = new ArrayList<>(2);
+      // 行番号が0の結果は読み込み自体のエラー（行としては数えない）
+      if (result.line > 0) {
+        rows++;
+        if (result.error != null)
+          failed++;
+      }
+      if (result.error != null) {
+        lines.add("{" + (result.line > 0 ? "\"line\":" + result.line + "," : "") +
+            (result.name == null ? "" : "\"name\":\"" + quote(result.name) + "\",") +
+            "\"error\":\"" + quote(result.error) + "\"}");
+      }
+      if (result.line > 0 && rows % progressEvery == 0)
+        lines.add("{\"progress\":" + counts(false) + "}");
+      return lines;
+    }
+
+    private String counts(boolean done) {
+      long elapsed = Math.max(1, System.nanoTime() - started);
+      long perSecond = rows * 1000000000L / elapsed;
+      return "{\"rows\":" + rows + ",\"created\":" + (rows - failed) + ",\"failed\":" + failed +
+          ",\"rowsPerSecond\":" + perSecond + (done ? ",\"elapsedMillis\":" + elapsed / 1000000 : "") + "}";
+    }
+  }
+
+  private static String quote(String value) {
+    return JacksonCodecs.quote(value);
+  }
+}
@@ -1,8 +1,13 @@
 package com.goticks;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
 public class EventMarshalling {
 
   public static class EventDescription {
@@ -43,4 +48,151 @@ public class EventMarshalling {
       return message;
     }
   }
+
+  // イベント一覧の1ページ分（nextは次のページを取得する際のafterで、最後のページでは省略する）
+  public static class EventPage {
+    private final List<BoxOffice.Event> events;
+    private final String next;
+
+    EventPage(List<BoxOffice.Event> events, String next) {
+      this.events = events;
+      this.next = next;
+    }
+
+    public List<BoxOffice.Event> getEvents() {
+      return events;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getNext() {
+      return next;
+    }
+  }
+
+  // 購入したチケットを範囲 [first, last] の配列で返す
+  public static class TicketRanges {
+    private final String event;
+    private final List<int[]> ranges;
+
+    TicketRanges(TicketSeller.Tickets tickets) {
+      this.event = tickets.getEvent();
+      this.ranges = tickets.getRanges().stream()
+          .map(range -> new int[]{range.getFirst(), range.getLast()})
+          .collect(Collectors.toList());
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public List<int[]> getRanges() {
+      return ranges;
+    }
+  }
+
+  // 複数イベントのチケットをまとめて購入するリクエスト
+  public static class BatchTicketRequest {
+    private final List<BatchItem> items;
+    private final boolean allOrNothing;
+
+    @JsonCreator
+    BatchTicketRequest(@JsonProperty("items") List<BatchItem> items,
+                       @JsonProperty("allOrNothing") Boolean allOrNothing) {
+      this.items = items == null ? Collections.emptyList() : items;
+      this.allOrNothing = allOrNothing != null && allOrNothing;
+    }
+
+    public List<BatchItem> getItems() {
+      return items;
+    }
+
+    public boolean isAllOrNothing() {
+      return allOrNothing;
+    }
+  }
+
+  public static class BatchItem {
+    private final String event;
+    private final int tickets;
+
+    @JsonCreator
+    BatchItem(@JsonProperty("event") String event, @JsonProperty("tickets") int tickets) {
+      this.event = event;
+      this.tickets = tickets;
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public int getTickets() {
+      return tickets;
+    }
+  }
+
+  // 購入結果（purchased: 購入済み, unavailable: 在庫不足またはイベントなし, released: 他の失敗により在庫に戻した）
+  public static class BatchItemResult {
+    private final String event;
+    private final String status;
+    private final List<TicketSeller.Ticket> entries;
+
+    BatchItemResult(String event, String status, List<TicketSeller.Ticket> entries) {
+      this.event = event;
+      this.status = status;
+      this.entries = entries;
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public String getStatus() {
+      return status;
+    }
+
+    public List<TicketSeller.Ticket> getEntries() {
+      return entries;
+    }
+  }
+
+  public static class BatchTicketResponse {
+    private final List<BatchItemResult> items;
+
+    BatchTicketResponse(List<BatchItemResult> items) {
+      this.items = items;
+    }
+
+    public List<BatchItemResult> getItems() {
+      return items;
+    }
+  }
+
+  // 仮押さえしたチケット（expiresAtはエポックミリ秒）
+  public static class HoldResponse {
+    private final long id;
+    private final TicketSeller.Tickets tickets;
+    private final long expiresAt;
+
+    HoldResponse(TicketSeller.HoldCreated created) {
+      this.id = created.getId();
+      this.tickets = created.getTickets();
+      this.expiresAt = created.getExpiresAt();
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getEvent() {
+      return tickets.getEvent();
+    }
+
+    public List<TicketSeller.Ticket> getEntries() {
+      return tickets.getEntries();
+    }
+
+    public long getExpiresAt() {
+      return expiresAt;
+    }
+  }
 }
@@ -0,0 +1,83 @@
+package com.goticks;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedDequeBasedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// メールボックス内のメッセージ数をアクターの種類（設定のactor-type）ごとにMetricsに記録するメールボックス
+// 永続化アクターのスタッシュで使えるように、先頭にも追加できるキューにする
+public class InstrumentedMailbox implements MailboxType, ProducesMessageQueue<InstrumentedMailbox.InstrumentedQueue> {
+  private final String actorType;
+
+  public InstrumentedMailbox(ActorSystem.Settings settings, Config config) {
+    this.actorType = config.getString("actor-type");
+  }
+
+  @Override
+  public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+    return new InstrumentedQueue(Metrics.get(system.get()).mailboxDepth(actorType));
+  }
+
+  public static class InstrumentedQueue implements MessageQueue, UnboundedDequeBasedMessageQueueSemantics {
+    private final Deque<Envelope> queue = new ConcurrentLinkedDeque<>();
+    // ConcurrentLinkedDequeのsize()は全件をたどるので件数は別に数える
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder depth;
+
+    InstrumentedQueue(LongAdder depth) {
+      this.depth = depth;
+    }
+
+    @Override
+    public void enqueue(ActorRef receiver, Envelope handle) {
+      queue.offerLast(handle);
+      size.incrementAndGet();
+      depth.increment();
+    }
+
+    @Override
+    public void enqueueFirst(ActorRef receiver, Envelope handle) {
+      queue.offerFirst(handle);
+      size.incrementAndGet();
+      depth.increment();
+    }
+
+    @Override
+    public Envelope dequeue() {
+      Envelope handle = queue.pollFirst();
+      if (handle != null) {
+        size.decrementAndGet();
+        depth.decrement();
+      }
+      return handle;
+    }
+
+    @Override
+    public int numberOfMessages() {
+      return size.get();
+    }
+
+    @Override
+    public boolean hasMessages() {
+      return !queue.isEmpty();
+    }
+
+    @Override
+    public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+      Envelope handle;
+      while ((handle = dequeue()) != null)
+        deadLetters.enqueue(owner, handle);
+    }
+  }
+}
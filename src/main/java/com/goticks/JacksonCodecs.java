@@ -0,0 +1,84 @@
+package com.goticks;
+
+import akka.http.javadsl.marshalling.Marshaller;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpEntity;
+import akka.http.javadsl.model.MediaType;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.RequestEntity;
+import akka.http.javadsl.unmarshalling.Unmarshaller;
+import akka.util.ByteString;
+import com.fasterxml.jackson.core.io.CharTypes;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import java.io.IOException;
+
+// リクエストとレスポンスの本文の変換
+// 型ごとのObjectWriter / ObjectReaderを最初に1度だけ作って使い回し、文字列を経由せずにバイト列と変換する
+// （Jackson.marshaller() / unmarshaller() は変換の度にObjectMapperから型を引き、JSONを一旦Stringにする）
+// cbor()の変換は Accept / Content-Type が application/cbor の場合に同じ内容をCBORで返す・読む
+class JacksonCodecs {
+  // バイナリ形式なので圧縮の対象にはしない（compressible = false）
+  static final MediaType.Binary CBOR_MEDIA_TYPE = MediaTypes.applicationBinary("cbor", false);
+
+  // Jackson.marshaller()と同じ設定（プロパティは名前順）
+  private static final ObjectMapper JSON = new ObjectMapper()
+      .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+  private static final ObjectMapper CBOR = new ObjectMapper(new CBORFactory())
+      .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+
+  static <T> Marshaller<T, RequestEntity> json(Class<T> type) {
+    ObjectWriter writer = JSON.writerFor(type);
+    return Marshaller.withFixedContentType(ContentTypes.APPLICATION_JSON,
+        value -> HttpEntities.create(ContentTypes.APPLICATION_JSON, write(writer, value)));
+  }
+
+  // Acceptで選ぶ（指定がなければJSON）
+  static <T> Marshaller<T, RequestEntity> cbor(Class<T> type) {
+    ObjectWriter writer = CBOR.writerFor(type);
+    return Marshaller.oneOf(json(type), Marshaller.withFixedContentType(CBOR_MEDIA_TYPE.toContentType(),
+        value -> HttpEntities.create(CBOR_MEDIA_TYPE.toContentType(), write(writer, value))));
+  }
+
+  // JSONの文字列の中身としてエスケープする（前後の " は付けない）
+  static String quote(String value) {
+    StringBuilder quoted = new StringBuilder(value.length() + 8);
+    CharTypes.appendQuoted(quoted, value);
+    return quoted.toString();
+  }
+
+  static <T> Unmarshaller<HttpEntity, T> jsonUnmarshaller(Class<T> type) {
+    return unmarshaller(MediaTypes.APPLICATION_JSON, JSON.readerFor(type));
+  }
+
+  // Content-Typeで選ぶ
+  static <T> Unmarshaller<HttpEntity, T> cborUnmarshaller(Class<T> type) {
+    return Unmarshaller.firstOf(jsonUnmarshaller(type), unmarshaller(CBOR_MEDIA_TYPE, CBOR.readerFor(type)));
+  }
+
+  private static <T> Unmarshaller<HttpEntity, T> unmarshaller(MediaType mediaType, ObjectReader reader) {
+    return Unmarshaller.forMediaType(mediaType, Unmarshaller.entityToByteString())
+        .thenApply(bytes -> read(reader, bytes));
+  }
+
+  private static byte[] write(ObjectWriter writer, Object value) {
+    try {
+      return writer.writeValueAsBytes(value);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot marshal " + value, e);
+    }
+  }
+
+  private static <T> T read(ObjectReader reader, ByteString bytes) {
+    try {
+      return reader.readValue(bytes.toArray());
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot unmarshal request entity", e);
+    }
+  }
+}
@@ -1,8 +1,10 @@
 package com.goticks;
 
 
+import akka.Done;
 import akka.NotUsed;
 import akka.actor.ActorSystem;
+import akka.actor.CoordinatedShutdown;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import akka.http.javadsl.ConnectHttp;
@@ -10,12 +12,16 @@ import akka.http.javadsl.Http;
 import akka.http.javadsl.ServerBinding;
 import akka.http.javadsl.model.HttpRequest;
 import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.server.Route;
 import akka.stream.ActorMaterializer;
 import akka.stream.javadsl.Flow;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
 
@@ -27,30 +33,93 @@ public class Main {
     final String host = config.getString("http.host");
     final int port = config.getInt("http.port");
 
-    final ActorSystem system = ActorSystem.create("go-ticks");
+    final ActorSystem system = ActorSystem.create("go-ticks", withDrainPhaseTimeout(config));
     final LoggingAdapter log = Logging.getLogger(system, Main.class);
 
-    final Http http = Http.get(system);
-    final ActorMaterializer materializer = ActorMaterializer.create(system);
+    // JDK 9以降のjavacではHttp.get(ActorSystem)の2つのstaticフォワーダーが曖昧になるので、applyで取得する
+    final Http http = (Http) Http.apply(system);
+    // 接続とルーティングのストリームはHTTPのディスパッチャーで動かす（BoxOffice / TicketSellerとスレッドを取り合わない）
+    final ActorMaterializer materializer = RestApi.materializer(system);
 
-    RestApi app = new RestApi(system, requestTimeout(config));
+    // クラスターで共有LevelDBジャーナルを使う場合は、ストアを起動（または参照）する
+    if (config.getBoolean("goticks.cluster.enabled")
+        && config.getString("akka.persistence.journal.plugin").equals("akka.persistence.journal.leveldb-shared"))
+      SellerSharding.startSharedJournal(system).whenComplete((done, failure) -> {
+        if (failure != null)
+          log.error(failure, "Shared journal store not available");
+      });
 
-    final Flow<HttpRequest, HttpResponse, NotUsed> routeFlow = app.createRoute().flow(system, materializer);
-    final CompletionStage<ServerBinding> binding = http.bindAndHandle(routeFlow,
-        ConnectHttp.toHost(host, port), materializer); // HTTPサーバーの起動
+    RestApi app = new RestApi(system, requestTimeout(config));
+    final Route route = app.createRoute();
+
+    // ウォームアップ（goticks.warm-up.enabled）が終わってからポートを開く
+    // ウォームアップは別のアクターシステムで流すので、このシステムのジャーナルや販売ジャーナルには残らない
+    final CompletionStage<Done> warmedUp = config.getBoolean("goticks.warm-up.enabled") ?
+        WarmUp.isolated(config, requestTimeout(config))
+            .exceptionally(failure -> {
+              log.warning("Warm-up failed: {}", failure.getMessage());
+              return Done.getInstance();
+            }) :
+        CompletableFuture.completedFuture(Done.getInstance());
+
+    final Flow<HttpRequest, HttpResponse, NotUsed> routeFlow = route.flow(system, materializer);
+    final CompletionStage<ServerBinding> binding = warmedUp.thenCompose(done -> http.bindAndHandle(routeFlow,
+        ConnectHttp.toHost(host, port), materializer)); // HTTPサーバーの起動
+
+    binding.whenComplete((bound, failure) -> {
+      if (failure != null) {
+        log.error(failure, "Failed to bind {}:{}", host, port);
+        CoordinatedShutdown.get(system).runAll(CoordinatedShutdown.unknownReason());
+      } else {
+        log.info("Server online at http://{}:{} ({} ms after JVM start)", host, port,
+            ManagementFactory.getRuntimeMXBean().getUptime());
+      }
+    });
+    drainOnShutdown(system, app, binding, config.getDuration("goticks.shutdown.drain-timeout"));
 
-    log.info("Server online at http://{}:{}", host, port);
     log.info("Press RETURN to stop...");
 
     System.in.read();
 
     log.info("presses return...");
 
-    binding
-        .thenCompose(ServerBinding::unbind)
-        .thenAccept(unbound -> system.terminate());
+    CoordinatedShutdown.get(system).runAll(CoordinatedShutdown.unknownReason());
+  }
 
+  // CoordinatedShutdown（RETURN、SIGTERMなど）で処理中のリクエストを終わらせてから止める
+  // service-unbind: 新しい接続を受け付けない
+  // service-requests-done: 処理中のリクエストにレスポンスを返し（新しいリクエストには503）、接続を閉じてから、
+  //                        BoxOfficeへのaskがすべて返るのを待つ（それぞれdrainTimeoutまで）
+  // その後のフェーズでアクターシステムを止める
+  static void drainOnShutdown(ActorSystem system, RestApi app, CompletionStage<ServerBinding> binding, Duration drainTimeout) {
+    final LoggingAdapter log = Logging.getLogger(system, Main.class);
+    final CoordinatedShutdown shutdown = CoordinatedShutdown.get(system);
+
+    shutdown.addTask(CoordinatedShutdown.PhaseServiceUnbind(), "http-unbind", () -> {
+      log.info("Shutting down: no longer accepting connections");
+      return binding.thenCompose(ServerBinding::unbind)
+          .exceptionally(failure -> Done.getInstance());
+    });
+
+    shutdown.addTask(CoordinatedShutdown.PhaseServiceRequestsDone(), "http-drain", () -> {
+      long started = System.nanoTime();
+      return binding.thenCompose(bound -> bound.terminate(drainTimeout))
+          .thenCompose(terminated -> app.awaitPendingAsks(system, drainTimeout))
+          .exceptionally(failure -> Done.getInstance())
+          .thenApply(done -> {
+            log.info("Shutting down: drained in {} ms", (System.nanoTime() - started) / 1000000);
+            return done;
+          });
+    });
+  }
 
+  // service-requests-doneフェーズのタイムアウトをdrain-timeoutから決める
+  // （HTTPの接続とBoxOfficeへのaskをそれぞれdrain-timeoutまで待つので、その2倍に余裕を足す）
+  static Config withDrainPhaseTimeout(Config config) {
+    long drain = config.getDuration("goticks.shutdown.drain-timeout").toMillis();
+    return ConfigFactory.parseString(
+        "akka.coordinated-shutdown.phases.service-requests-done.timeout = " + (2 * drain + 5000) + "ms")
+        .withFallback(config);
   }
 
   static protected Long requestTimeout(Config config) {
@@ -0,0 +1,186 @@
+package com.goticks;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// アクターシステムごとのメトリクス（GET /metrics でPrometheusのテキスト形式で返す）
+// 記録する側はLongAdderを加算するだけなので、ロックを取らずに複数のスレッドから同時に記録できる
+public class Metrics implements Extension {
+  private static final MetricsId ID = new MetricsId();
+
+  static class MetricsId extends AbstractExtensionId<Metrics> {
+    @Override
+    public Metrics createExtension(ExtendedActorSystem system) {
+      return new Metrics(system.settings().config().getInt("goticks.metrics.max-event-labels"));
+    }
+  }
+
+  static Metrics get(ActorSystem system) {
+    return ID.get(system);
+  }
+
+  // 上限（秒）ごとのバケツに件数を数えるヒストグラム
+  static class Histogram {
+    private static final double[] BOUNDS =
+        {0.0001, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BOUND_NANOS = new long[BOUNDS.length];
+
+    static {
+      for (int i = 0; i < BOUNDS.length; i++)
+        BOUND_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+    }
+
+    // 最後のバケツは上限なし（+Inf）
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < buckets.length; i++)
+        buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+      int i = 0;
+      while (i < BOUND_NANOS.length && nanos > BOUND_NANOS[i])
+        i++;
+      buckets[i].increment();
+      sumNanos.add(nanos);
+    }
+
+    // labelsが空の場合はラベルなしで出力する
+    private void render(StringBuilder out, String name, String labels) {
+      String prefix = labels.isEmpty() ? "" : labels + ",";
+      String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+      long cumulative = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        cumulative += buckets[i].sum();
+        String le = i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf";
+        out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+            .append(cumulative).append('\n');
+      }
+      out.append(name).append("_sum").append(suffix).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+      out.append(name).append("_count").append(suffix).append(' ').append(cumulative).append('\n');
+    }
+  }
+
+  // ルートごとのレイテンシ
+  private final ConcurrentMap<String, Histogram> routes = new ConcurrentHashMap<>();
+  // askのタイムアウト回数（メッセージの型ごと）
+  private final ConcurrentMap<String, LongAdder> askTimeouts = new ConcurrentHashMap<>();
+  // アクターの種類ごとのメールボックス内のメッセージ数と、1メッセージの処理時間
+  private final ConcurrentMap<String, LongAdder> mailboxDepth = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Histogram> processing = new ConcurrentHashMap<>();
+  // イベントごとの販売枚数（秒あたりの販売数はPrometheus側でrate()を取る）
+  // イベント名はいくらでも増えるので、ラベルを付けるのはmaxEventLabels個までにして、残りはotherにまとめる
+  static final String OTHER_EVENTS = "other";
+  private final ConcurrentMap<String, LongAdder> ticketsSold = new ConcurrentHashMap<>();
+  private final LongAdder otherEventsSold = new LongAdder();
+  private final int maxEventLabels;
+  // 過負荷で受け付けなかったリクエスト数（理由ごと）
+  private final ConcurrentMap<String, LongAdder> rejected = new ConcurrentHashMap<>();
+  // メモリ上のTicketSellerの数と、停止（パッシベーション）した回数、ジャーナルからの復元にかかった時間
+  private final LongAdder residentSellers = new LongAdder();
+  private final LongAdder passivatedSellers = new LongAdder();
+  private final Histogram sellerRecovery = new Histogram();
+
+  Metrics(int maxEventLabels) {
+    this.maxEventLabels = maxEventLabels;
+  }
+
+  Histogram route(String route) {
+    return routes.computeIfAbsent(route, name -> new Histogram());
+  }
+
+  LongAdder askTimeouts(String message) {
+    return askTimeouts.computeIfAbsent(message, name -> new LongAdder());
+  }
+
+  LongAdder mailboxDepth(String actor) {
+    return mailboxDepth.computeIfAbsent(actor, name -> new LongAdder());
+  }
+
+  Histogram processing(String actor) {
+    return processing.computeIfAbsent(actor, name -> new Histogram());
+  }
+
+  // 上限はおおよそ（同時に増えた場合は少し超えることがある）
+  LongAdder ticketsSold(String event) {
+    LongAdder sold = ticketsSold.get(event);
+    if (sold != null)
+      return sold;
+    if (ticketsSold.size() >= maxEventLabels || event.equals(OTHER_EVENTS))
+      return otherEventsSold;
+    return ticketsSold.computeIfAbsent(event, name -> new LongAdder());
+  }
+
+  // キャンセルしたイベントのラベルは外して、他のイベントに空ける
+  void eventCancelled(String event) {
+    ticketsSold.remove(event);
+  }
+
+  LongAdder rejected(String reason) {
+    return rejected.computeIfAbsent(reason, name -> new LongAdder());
+  }
+
+  LongAdder residentSellers() {
+    return residentSellers;
+  }
+
+  LongAdder passivatedSellers() {
+    return passivatedSellers;
+  }
+
+  Histogram sellerRecovery() {
+    return sellerRecovery;
+  }
+
+  // Prometheusのテキスト形式（version 0.0.4）
+  String render() {
+    StringBuilder out = new StringBuilder();
+    histograms(out, "goticks_http_request_duration_seconds", "HTTP request latency by route.", "route", routes);
+    counters(out, "goticks_ask_timeouts_total", "Asks that timed out by message type.", "counter", "message", askTimeouts);
+    counters(out, "goticks_mailbox_depth", "Messages waiting in mailboxes by actor type.", "gauge", "actor", mailboxDepth);
+    histograms(out, "goticks_actor_processing_seconds", "Time spent processing one message by actor type.", "actor", processing);
+    counters(out, "goticks_tickets_sold_total", "Tickets sold by event (events over the label limit are counted as other).",
+        "counter", "event", ticketsSold);
+    out.append("goticks_tickets_sold_total{").append(label("event", OTHER_EVENTS)).append("} ")
+        .append(otherEventsSold.sum()).append('\n');
+    counters(out, "goticks_rejected_requests_total", "Requests rejected under overload by reason.", "counter", "reason", rejected);
+    value(out, "goticks_ticket_sellers_resident", "TicketSellers currently in memory.", "gauge", residentSellers);
+    value(out, "goticks_ticket_sellers_passivated_total", "TicketSellers stopped after being idle.", "counter", passivatedSellers);
+    out.append("# HELP goticks_ticket_seller_recovery_seconds Time to recover a TicketSeller with existing state (reactivation or restart).\n");
+    out.append("# TYPE goticks_ticket_seller_recovery_seconds histogram\n");
+    sellerRecovery.render(out, "goticks_ticket_seller_recovery_seconds", "");
+    return out.toString();
+  }
+
+  private static void histograms(StringBuilder out, String name, String help, String label, Map<String, Histogram> values) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" histogram\n");
+    values.forEach((value, histogram) -> histogram.render(out, name, label(label, value)));
+  }
+
+  private static void counters(StringBuilder out, String name, String help, String type, String label, Map<String, LongAdder> values) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    values.forEach((value, adder) ->
+        out.append(name).append('{').append(label(label, value)).append("} ").append(adder.sum()).append('\n'));
+  }
+
+  private static void value(StringBuilder out, String name, String help, String type, LongAdder value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    out.append(name).append(' ').append(value.sum()).append('\n');
+  }
+
+  private static String label(String name, String value) {
+    return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+  }
+}
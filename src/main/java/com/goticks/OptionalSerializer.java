@@ -0,0 +1,61 @@
+package com.goticks;
+
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.JSerializer;
+import akka.util.ClassLoaderObjectInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Optional;
+
+// TicketSellerの返信に使うOptionalはSerializableではないので、クラスターでノードをまたぐ時は中身だけをJavaシリアライゼーションで送る
+// 先頭の1バイトは値の有無（0: empty, 1: 値あり）
+public class OptionalSerializer extends JSerializer {
+  private final ExtendedActorSystem system;
+
+  public OptionalSerializer(ExtendedActorSystem system) {
+    this.system = system;
+  }
+
+  @Override
+  public int identifier() {
+    return 5000;
+  }
+
+  @Override
+  public boolean includeManifest() {
+    return false;
+  }
+
+  @Override
+  public byte[] toBinary(Object o) {
+    Optional<?> optional = (Optional<?>) o;
+    if (!optional.isPresent())
+      return new byte[]{0};
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(1);
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(optional.get());
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Cannot serialize " + o, e);
+    }
+    return bytes.toByteArray();
+  }
+
+  @Override
+  public Object fromBinaryJava(byte[] bytes, Class<?> manifest) {
+    if (bytes[0] == 0)
+      return Optional.empty();
+
+    try (ObjectInputStream in = new ClassLoaderObjectInputStream(system.dynamicAccess().classLoader(),
+        new ByteArrayInputStream(bytes, 1, bytes.length - 1))) {
+      return Optional.of(in.readObject());
+    } catch (IOException | ClassNotFoundException e) {
+      throw new IllegalArgumentException("Cannot deserialize Optional", e);
+    }
+  }
+}
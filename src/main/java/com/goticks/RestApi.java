@@ -1,20 +1,56 @@
 package com.goticks;
 
 
+import akka.Done;
+import akka.NotUsed;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
-import akka.http.javadsl.marshallers.jackson.Jackson;
-import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.marshalling.Marshaller;
+import akka.http.javadsl.model.*;
+import akka.http.javadsl.model.headers.Accept;
+import akka.http.javadsl.model.headers.EntityTag;
+import akka.http.javadsl.model.headers.RawHeader;
 import akka.http.javadsl.server.AllDirectives;
+import akka.http.javadsl.server.Complete;
+import akka.http.javadsl.server.ExceptionHandler;
 import akka.http.javadsl.server.Route;
+import akka.http.javadsl.server.RouteResult;
+import akka.http.javadsl.unmarshalling.Unmarshaller;
+import akka.japi.Pair;
+import akka.pattern.AskTimeoutException;
+import akka.pattern.PatternsCS;
+import akka.routing.ConsistentHash;
+import akka.stream.ActorMaterializer;
+import akka.stream.ActorMaterializerSettings;
+import akka.stream.OverflowStrategy;
+import akka.stream.QueueOfferResult;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import akka.util.ByteString;
 import com.goticks.BoxOffice.*;
 import com.goticks.EventMarshalling.*;
+import com.typesafe.config.Config;
 
-import java.util.Optional;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
+import static akka.http.javadsl.server.PathMatchers.longSegment;
 import static akka.http.javadsl.server.PathMatchers.segment;
 import static akka.pattern.PatternsCS.ask;
 
@@ -22,73 +58,597 @@ import static akka.pattern.PatternsCS.ask;
 class RestApi extends AllDirectives {
   private final Long timeout;
   private final LoggingAdapter log;
-  private final ActorRef boxOfficeActor;
+  private final List<ActorRef> boxOffices;
+  private final ConsistentHash<Integer> boxOfficeRing;
   private final String msg = "      📩 {}";
+  private final Metrics metrics;
+  private final AvailabilityView view;
+
+  // チケットを範囲で返すレスポンスのメディアタイプ
+  static final MediaType.WithFixedCharset RANGES_MEDIA_TYPE =
+      MediaTypes.applicationWithFixedCharset("vnd.goticks.ranges+json", HttpCharsets.UTF_8);
+
+  // イベント一覧を1行1イベントで返すレスポンスのメディアタイプ
+  static final MediaType.WithFixedCharset NDJSON_MEDIA_TYPE =
+      MediaTypes.applicationWithFixedCharset("x-ndjson", HttpCharsets.UTF_8);
+
+  // イベント一覧のビューの鮮度を返すヘッダー
+  static final String STALENESS_HEADER = "X-Events-Staleness-Millis";
+
+  // 本文の変換は型ごとに作っておく（Event / Events / Tickets / EventErrorとイベント作成・購入のリクエストはCBORにも対応する）
+  private final Marshaller<Event, RequestEntity> eventMarshaller = JacksonCodecs.cbor(Event.class);
+  private final Marshaller<Events, RequestEntity> eventsMarshaller = JacksonCodecs.cbor(Events.class);
+  private final Marshaller<TicketSeller.Tickets, RequestEntity> ticketsMarshaller =
+      JacksonCodecs.cbor(TicketSeller.Tickets.class);
+  private final Marshaller<EventPage, RequestEntity> pageMarshaller = JacksonCodecs.json(EventPage.class);
+  private final Marshaller<EventError, RequestEntity> errorMarshaller = JacksonCodecs.cbor(EventError.class);
+  private final Marshaller<HoldResponse, RequestEntity> holdMarshaller = JacksonCodecs.json(HoldResponse.class);
+  private final Marshaller<BatchTicketResponse, RequestEntity> batchMarshaller =
+      JacksonCodecs.json(BatchTicketResponse.class);
+  private final Marshaller<WaitingRoom.Position, RequestEntity> positionMarshaller =
+      JacksonCodecs.json(WaitingRoom.Position.class);
+  private final Marshaller<TicketRanges, RequestEntity> rangesMarshaller = Marshaller.oneOf(
+      JacksonCodecs.json(TicketRanges.class),
+      Marshaller.wrapEntity(Function.identity(), JacksonCodecs.json(TicketRanges.class), RANGES_MEDIA_TYPE));
+  private final Unmarshaller<HttpEntity, EventDescription> eventDescriptionUnmarshaller =
+      JacksonCodecs.cborUnmarshaller(EventDescription.class);
+  private final Unmarshaller<HttpEntity, TicketRequest> ticketRequestUnmarshaller =
+      JacksonCodecs.cborUnmarshaller(TicketRequest.class);
+  private final Unmarshaller<HttpEntity, BatchTicketRequest> batchRequestUnmarshaller =
+      JacksonCodecs.jsonUnmarshaller(BatchTicketRequest.class);
+
+  private final int streamThreshold;
+  private final int eventsPageSize;
+
+  // フラッシュセール用の待合室と、順番を確認し直すまでの秒数
+  private final WaitingRoom waitingRoom;
+  private final long waitingRoomRetryAfter;
+
+  // HTTPのディスパッチャー（goticks.rest-api.dispatcher）
+  // 複数のシャードへのaskの結果をまとめる処理は、最後に返信したBoxOfficeのスレッドではなくここで動かす
+  private final Executor executor;
+
+  // 返信を待っているBoxOfficeへのask（シャットダウン時はすべて返るまで待つ）
+  private final AtomicLong pendingAsks = new AtomicLong();
+
+  // POST /events/ のイベントの一括作成
+  private final EventImport eventImport;
+
+  // BoxOfficeへのaskを流すストリームの入口（goticks.rest-api.pipeline.enabled = off の場合はnull）
+  private final SourceQueueWithComplete<PipelineCommand> pipeline;
+
+  // パイプラインに流すコマンド（応答はreplyで返す）
+  private static class PipelineCommand {
+    private final ActorRef boxOffice;
+    private final Object message;
+    private final CompletableFuture<Object> reply = new CompletableFuture<>();
+
+    PipelineCommand(ActorRef boxOffice, Object message) {
+      this.boxOffice = boxOffice;
+      this.message = message;
+    }
+  }
+
+  // パイプラインのバッファが一杯で受け付けられなかった
+  static class PipelineFullException extends RuntimeException {
+    PipelineFullException() {
+      super("Request pipeline is full", null, false, false);
+    }
+  }
+
+  // 購入できたかどうか分からない項目があったので、複数イベントの購入全体を取り消した
+  static class BatchAbortedException extends RuntimeException {
+    BatchAbortedException(Throwable cause) {
+      super("Batch purchase aborted", cause, false, false);
+    }
+  }
 
   // コンストラクタ
   RestApi(ActorSystem system, Long timeout) {
     this.timeout = timeout;
     log = Logging.getLogger(system, this);
-    boxOfficeActor = system.actorOf(BoxOffice.props(timeout), "boxOfficeActor");
+    metrics = Metrics.get(system);
+    view = AvailabilityView.get(system);
+    executor = system.dispatchers().lookup(system.settings().config().getString("goticks.rest-api.dispatcher"));
+    streamThreshold = system.settings().config().getInt("goticks.rest-api.stream-threshold");
+    eventsPageSize = system.settings().config().getInt("goticks.rest-api.events-page-size");
+    eventImport = new EventImport(system.settings().config().getConfig("goticks.rest-api.import"));
+
+    // イベント名のコンシステントハッシュでBoxOfficeのシャードに振り分ける
+    // クラスターではTicketSellerをシャードリージョン経由で各ノードに分散する
+    Config config = system.settings().config();
+    ActorRef sellerRegion = config.getBoolean("goticks.cluster.enabled") ? SellerSharding.start(system) : null;
+    int shards = sellerRegion == null ? recordedShards(system, config) : boxOfficeShards(config);
+    String boxOfficeDispatcher = config.getString("goticks.box-office.dispatcher");
+    boxOffices = IntStream.range(0, shards)
+        .mapToObj(shard -> system.actorOf(BoxOffice.props(shard, timeout, sellerRegion)
+            .withDispatcher(boxOfficeDispatcher), "boxOffice-" + shard))
+        .collect(Collectors.toList());
+    boxOfficeRing = boxOfficeRing(shards, config.getInt("goticks.box-office.virtual-nodes-factor"));
+    log.info("BoxOffice shards: {}{}", shards, sellerRegion == null ? "" : " (cluster sharding)");
+
+    if (config.getBoolean("goticks.sales-journal.enabled"))
+      system.actorOf(SalesAudit.props(config.getConfig("goticks.sales-journal")), "salesAudit");
+
+    Config waitingRoomConfig = config.getConfig("goticks.waiting-room");
+    Duration admitInterval = waitingRoomConfig.getDuration("interval");
+    waitingRoom = new WaitingRoom(waitingRoomConfig.getInt("batch-size"),
+        (int) Math.ceil((double) waitingRoomConfig.getDuration("admitted-ttl").toMillis() / admitInterval.toMillis()));
+    waitingRoomRetryAfter = Math.max(1, (admitInterval.toMillis() + 999) / 1000);
+    system.scheduler().schedule(admitInterval, admitInterval, waitingRoom::admit, system.dispatchers().lookup(config.getString("goticks.rest-api.dispatcher")));
+
+    Config pipelineConfig = config.getConfig("goticks.rest-api.pipeline");
+    pipeline = pipelineConfig.getBoolean("enabled") ?
+        runPipeline(system, pipelineConfig.getInt("buffer-size"), pipelineConfig.getInt("parallelism")) : null;
+  }
+
+  // 同時に処理中のaskをparallelism件までに抑え、待ちはbufferSize件までにする
+  // askの失敗はreplyに渡し、ストリーム自体は止めない
+  private SourceQueueWithComplete<PipelineCommand> runPipeline(ActorSystem system, int bufferSize, int parallelism) {
+    log.info("Request pipeline: buffer-size {}, parallelism {}", bufferSize, parallelism);
+    return Source.<PipelineCommand>queue(bufferSize, OverflowStrategy.dropNew())
+        .mapAsyncUnordered(parallelism, command -> ask(command.boxOffice, command.message, timeout)
+            .handle((reply, failure) -> failure == null ?
+                command.reply.complete(reply) : command.reply.completeExceptionally(failure)))
+        .to(Sink.ignore())
+        .run(materializer(system));
+  }
+
+  // HTTPのディスパッチャーでストリームを動かすマテリアライザー
+  static ActorMaterializer materializer(ActorSystem system) {
+    return ActorMaterializer.create(ActorMaterializerSettings.create(system)
+        .withDispatcher(system.settings().config().getString("goticks.rest-api.dispatcher")), system);
+  }
+
+  // シャード数が0の場合はデフォルトディスパッチャーの並列度に合わせる
+  // （シャード数はイベントの振り分け先を決めるので、goticks.dispatchers の調整では変わらないようにする）
+  static int boxOfficeShards(Config config) {
+    int shards = config.getInt("goticks.box-office.shards");
+    if (shards > 0)
+      return shards;
+
+    Config forkJoin = config.getConfig("akka.actor.default-dispatcher.fork-join-executor");
+    int parallelism = (int) Math.ceil(Runtime.getRuntime().availableProcessors() * forkJoin.getDouble("parallelism-factor"));
+    return Math.min(Math.max(parallelism, forkJoin.getInt("parallelism-min")), forkJoin.getInt("parallelism-max"));
   }
 
-  private CompletionStage<Events> getEvents() {
-    return ask(boxOfficeActor, new GetEvents(), timeout).thenApply((Events.class::cast));
+  // ジャーナルに記録したシャード数を使う（初回の起動では設定から決めて記録する）
+  // 記録と設定が食い違う場合は、保存済みのイベントが別のシャードに振り分けられてしまうので起動しない
+  private int recordedShards(ActorSystem system, Config config) {
+    ActorRef layout = system.actorOf(BoxOfficeLayout.props(), "boxOfficeLayout");
+    try {
+      Object reply = ask(layout, new BoxOfficeLayout.Resolve(config.getInt("goticks.box-office.shards"),
+          boxOfficeShards(config), config.getInt("goticks.box-office.virtual-nodes-factor")), timeout)
+          .toCompletableFuture().get(timeout, TimeUnit.MILLISECONDS);
+      return ((BoxOfficeLayout.Layout) reply).getShards();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+    } catch (InterruptedException | TimeoutException e) {
+      throw new IllegalStateException("Could not read the BoxOffice layout from the journal", e);
+    } finally {
+      system.stop(layout);
+    }
+  }
+
+  static ConsistentHash<Integer> boxOfficeRing(Config config) {
+    return boxOfficeRing(boxOfficeShards(config), config.getInt("goticks.box-office.virtual-nodes-factor"));
+  }
+
+  static ConsistentHash<Integer> boxOfficeRing(int shards, int virtualNodesFactor) {
+    return ConsistentHash.create(IntStream.range(0, shards).boxed().collect(Collectors.toList()), virtualNodesFactor);
+  }
+
+  private ActorRef boxOfficeFor(String event) {
+    return boxOffices.get(boxOfficeRing.nodeFor(event));
+  }
+
+  // タイムアウトしたaskをメッセージの型ごとに数える
+  private CompletionStage<Object> askBoxOffice(ActorRef boxOffice, Object message) {
+    pendingAsks.incrementAndGet();
+    CompletionStage<Object> reply = pipeline == null ? ask(boxOffice, message, timeout) : offer(boxOffice, message);
+    return reply.whenComplete((result, failure) -> {
+      pendingAsks.decrementAndGet();
+      if (failure instanceof AskTimeoutException || (failure != null && failure.getCause() instanceof AskTimeoutException))
+        metrics.askTimeouts(message.getClass().getSimpleName()).increment();
+    });
+  }
+
+  long pendingAsks() {
+    return pendingAsks.get();
+  }
+
+  // 返信を待っているaskがなくなるか、timeoutが過ぎるまで待つ（シャットダウン時にHTTPの接続を閉じた後で呼ぶ）
+  // HTTPのレスポンスを返した後も続いているask（リクエストのタイムアウト後の購入など）もここで待つ
+  CompletionStage<Done> awaitPendingAsks(ActorSystem system, Duration timeout) {
+    return awaitPendingAsks(system, System.nanoTime() + timeout.toNanos());
+  }
+
+  private CompletionStage<Done> awaitPendingAsks(ActorSystem system, long deadline) {
+    long pending = pendingAsks.get();
+    if (pending == 0)
+      return CompletableFuture.completedFuture(Done.getInstance());
+    if (System.nanoTime() >= deadline) {
+      log.warning("{} asks still pending after the drain timeout", pending);
+      return CompletableFuture.completedFuture(Done.getInstance());
+    }
+    return PatternsCS.after(Duration.ofMillis(50), system.scheduler(), system.dispatcher(),
+        () -> awaitPendingAsks(system, deadline));
+  }
+
+  // パイプラインのバッファに空きがなければタイムアウトを待たずにPipelineFullExceptionで失敗させる
+  private CompletionStage<Object> offer(ActorRef boxOffice, Object message) {
+    PipelineCommand command = new PipelineCommand(boxOffice, message);
+    return pipeline.offer(command).thenCompose(result -> {
+      if (result == QueueOfferResult.enqueued())
+        return command.reply;
+
+      // 満杯で入らなかった場合だけ数える（閉じたパイプラインへのofferは満杯ではない）
+      CompletableFuture<Object> rejected = new CompletableFuture<>();
+      if (result == QueueOfferResult.dropped()) {
+        metrics.rejected("pipeline-full").increment();
+        rejected.completeExceptionally(new PipelineFullException());
+      } else {
+        rejected.completeExceptionally(new IllegalStateException("Request pipeline is closed: " + result));
+      }
+      return rejected;
+    });
+  }
+
+  // 受け付けられなかったリクエストには、1秒あたりの上限を超えた場合は429、それ以外は503を返す
+  private Route handleRejected(Supplier<Route> inner) {
+    return handleExceptions(ExceptionHandler.newBuilder()
+        .match(PipelineFullException.class, this::rejected)
+        .match(AdmissionRejected.class, this::rejected)
+        .match(BatchAbortedException.class, this::rejected)
+        .match(CompletionException.class,
+            e -> e.getCause() instanceof PipelineFullException || e.getCause() instanceof AdmissionRejected ||
+                e.getCause() instanceof BatchAbortedException,
+            e -> rejected(e.getCause()))
+        .build(), inner);
+  }
+
+  private Route rejected(Throwable failure) {
+    if (!(failure instanceof AdmissionRejected))
+      return rejected(StatusCodes.SERVICE_UNAVAILABLE, 1);
+
+    AdmissionRejected rejected = (AdmissionRejected) failure;
+    return rejected(rejected.getReason().equals(AdmissionRejected.RATE_LIMITED) ?
+        StatusCodes.TOO_MANY_REQUESTS : StatusCodes.SERVICE_UNAVAILABLE, rejected.getRetryAfterSeconds());
+  }
+
+  private Route rejected(StatusCode status, long retryAfterSeconds) {
+    return respondWithHeader(RawHeader.create("Retry-After", String.valueOf(retryAfterSeconds)), () -> complete(status));
+  }
+
+  // カタログのバージョンをETagにして、変わっていなければBoxOfficeに問い合わせずに304を返す
+  // バージョンは問い合わせる前に読むので、返す一覧は常にそのバージョン以降の内容になる
+  // ページ単位の一覧とストリーミングはJSON（NDJSON）しか返さないので、表現によらず同じETagにする
+  private Route catalogConditional(Supplier<Route> inner) {
+    return conditional(EntityTag.create(view.catalogTag(), false), inner);
+  }
+
+  // 全件の一覧はCBORでも返すので、表現ごとにETagを分ける
+  private Route negotiatedCatalogConditional(Supplier<Route> inner) {
+    return negotiatedConditional(view.catalogTag(), inner);
+  }
+
+  // 同じ内容でもJSONとCBORは別の表現なので、ETagにCBORかどうかを含め、キャッシュにもVary: Acceptで区別させる
+  private Route negotiatedConditional(String tag, Supplier<Route> inner) {
+    return extractRequest(request -> respondWithHeader(RawHeader.create("Vary", "Accept"), () ->
+        conditional(EntityTag.create(acceptsCbor(request) ? tag + "-cbor" : tag, false), inner)));
+  }
+
+  // リクエストを受けてからレスポンスを返すまでの時間をルートごとに記録する
+  // 429/503で受け付けなかったリクエストやaskのタイムアウトも、外側のハンドラーで応答になる前の
+  // 拒否（rejection）や失敗として終わるので、ルートの結果が決まった時点で結果によらず記録する
+  private Route timed(String route, Supplier<Route> inner) {
+    Metrics.Histogram latency = metrics.route(route);
+    return extractRequestContext(ctx -> {
+      long started = System.nanoTime();
+      return mapRouteResultFuture(result -> result.whenComplete((done, failure) ->
+          latency.record(System.nanoTime() - started)), inner);
+    });
+  }
+
+  // 全シャードのイベント一覧を集めて名前順に並べる
+  CompletionStage<Events> getEvents() {
+    List<CompletableFuture<Events>> shards = boxOffices.stream()
+        .map(boxOffice -> askBoxOffice(boxOffice, new GetEvents()).thenApply(Events.class::cast).toCompletableFuture())
+        .collect(Collectors.toList());
+
+    return CompletableFuture
+        .allOf(shards.toArray(new CompletableFuture[0]))
+        .thenApplyAsync(ignored -> {
+          List<Events> results = shards.stream().map(CompletableFuture::join).collect(Collectors.toList());
+          List<Event> events = results.stream()
+              .flatMap(result -> result.getEvents().stream())
+              .sorted(Comparator.comparing(Event::getName))
+              .collect(Collectors.toList());
+          long staleness = results.stream().mapToLong(Events::getStaleness).max().orElse(0L);
+          return new Events(events, staleness);
+        }, executor);
+  }
+
+  // 各シャードからafterより後のイベントを最大limit+1件ずつ集め、名前順にlimit件を1ページとする
+  // limit件を超えて集まった場合だけ次のページがある
+  private CompletionStage<EventPage> getEventPage(String after, int limit) {
+    List<CompletableFuture<Events>> shards = boxOffices.stream()
+        .map(boxOffice -> askBoxOffice(boxOffice, new GetEvents(after, limit + 1)).thenApply(Events.class::cast).toCompletableFuture())
+        .collect(Collectors.toList());
+
+    return CompletableFuture
+        .allOf(shards.toArray(new CompletableFuture[0]))
+        .thenApplyAsync(ignored -> {
+          List<Event> events = shards.stream()
+              .flatMap(shard -> shard.join().getEvents().stream())
+              .sorted(Comparator.comparing(Event::getName))
+              .limit(limit + 1)
+              .collect(Collectors.toList());
+          if (events.size() <= limit)
+            return new EventPage(events, null);
+
+          List<Event> page = events.subList(0, limit);
+          return new EventPage(page, page.get(limit - 1).getName());
+        }, executor);
+  }
+
+  // ページ単位で取得しながらイベントを流す（メモリ使用量はカタログの大きさによらず1ページ分に収まる）
+  private Source<Event, NotUsed> streamEvents() {
+    return Source.unfoldAsync(Optional.of(""), (Optional<String> after) -> {
+      if (!after.isPresent())
+        return CompletableFuture.completedFuture(Optional.empty());
+
+      return getEventPage(after.get(), eventsPageSize)
+          .thenApply(page -> Optional.of(Pair.create(Optional.ofNullable(page.getNext()), page.getEvents())));
+    }).mapConcat(events -> events);
+  }
+
+  // イベント一覧をNDJSON、またはJSONの配列としてチャンク単位で送る
+  private HttpEntity.Chunked streamEventsEntity(boolean ndjson) {
+    Source<String, NotUsed> events = streamEvents()
+        .map(event -> "{\"name\":\"" + JacksonCodecs.quote(event.getName()) +
+            "\",\"tickets\":" + event.getTickets() + "}");
+    Source<String, NotUsed> lines = ndjson ?
+        events.map(event -> event + "\n") :
+        events.intersperse("{\"events\":[", ",", "]}");
+
+    return HttpEntities.createChunked(
+        ndjson ? NDJSON_MEDIA_TYPE.toContentType() : ContentTypes.APPLICATION_JSON,
+        lines.grouped(1024).map(chunk -> ByteString.fromString(String.join("", chunk))));
   }
 
   @SuppressWarnings("unchecked")
   private CompletionStage<Optional<Event>> getEvent(String name) {
-    return ask(boxOfficeActor, new GetEvent(name), timeout).thenApply(obj -> (Optional<Event>) obj);
+    return askBoxOffice(boxOfficeFor(name), new GetEvent(name)).thenApply(obj -> (Optional<Event>) obj);
   }
 
   @SuppressWarnings("unchecked")
   private CompletionStage<Optional<Event>> cancelEvent(String name) {
-    return ask(boxOfficeActor, new CancelEvent(name), timeout).thenApply(obj -> (Optional<Event>) obj);
+    return askBoxOffice(boxOfficeFor(name), new CancelEvent(name)).thenApply(obj -> (Optional<Event>) obj);
   }
 
-  private CompletionStage<EventResponse> createEvent(String name, int nrOfTickets) {
-    return ask(boxOfficeActor, new CreateEvent(name, nrOfTickets), timeout).thenApply(EventResponse.class::cast);
+  CompletionStage<EventResponse> createEvent(String name, int nrOfTickets) {
+    return askBoxOffice(boxOfficeFor(name), new CreateEvent(name, nrOfTickets)).thenApply(EventResponse.class::cast);
   }
 
   private CompletionStage<TicketSeller.Tickets> requestTickets(String event, int tickets) {
-    return ask(boxOfficeActor, new GetTickets(event, tickets), timeout).thenApply(TicketSeller.Tickets.class::cast);
+    return askBoxOffice(boxOfficeFor(event), new GetTickets(event, tickets)).thenApply(TicketSeller.Tickets.class::cast);
+  }
+
+  private CompletionStage<Object> holdTickets(String event, int tickets) {
+    return askBoxOffice(boxOfficeFor(event), new HoldTickets(event, tickets));
+  }
+
+  @SuppressWarnings("unchecked")
+  private CompletionStage<Optional<TicketSeller.Tickets>> confirmHold(String event, long id) {
+    return askBoxOffice(boxOfficeFor(event), new ConfirmHold(event, id)).thenApply(obj -> (Optional<TicketSeller.Tickets>) obj);
+  }
+
+  @SuppressWarnings("unchecked")
+  private CompletionStage<Optional<TicketSeller.Tickets>> releaseHold(String event, long id) {
+    return askBoxOffice(boxOfficeFor(event), new ReleaseHold(event, id)).thenApply(obj -> (Optional<TicketSeller.Tickets>) obj);
+  }
+
+  // 各イベントのチケットを並行して購入する
+  // allOrNothingの場合は1つでも失敗したら購入済みのチケットを在庫に戻す
+  // 流量制限などで断られた項目は購入されていないので、在庫不足と同じunavailableにする
+  // 返信がタイムアウトした項目は購入できたかどうか分からないので、購入済みのチケットを在庫に戻してバッチ全体を失敗させる
+  private CompletionStage<BatchTicketResponse> requestBatch(BatchTicketRequest request) {
+    List<CompletableFuture<TicketSeller.Tickets>> purchases = request.getItems().stream()
+        .map(item -> requestTickets(item.getEvent(), item.getTickets())
+            .exceptionally(failure -> {
+              Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+              if (cause instanceof AdmissionRejected || cause instanceof PipelineFullException)
+                return new TicketSeller.Tickets(item.getEvent());
+              throw new BatchAbortedException(cause);
+            })
+            .toCompletableFuture())
+        .collect(Collectors.toList());
+
+    return CompletableFuture
+        .allOf(purchases.toArray(new CompletableFuture[0]))
+        .handleAsync((ignored, failure) -> {
+          if (failure != null) {
+            purchases.stream()
+                .filter(purchase -> !purchase.isCompletedExceptionally())
+                .map(CompletableFuture::join)
+                .filter(tickets -> !tickets.getRanges().isEmpty())
+                .forEach(this::returnTickets);
+            Throwable aborted = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            log.warning("Batch purchase of {} items aborted: {}", purchases.size(), aborted.getCause());
+            throw aborted instanceof BatchAbortedException ? (BatchAbortedException) aborted : new BatchAbortedException(aborted);
+          }
+
+          List<TicketSeller.Tickets> results = purchases.stream().map(CompletableFuture::join).collect(Collectors.toList());
+          boolean release = request.isAllOrNothing() && results.stream().anyMatch(tickets -> tickets.getRanges().isEmpty());
+
+          List<BatchItemResult> items = results.stream().map(tickets -> {
+            if (tickets.getRanges().isEmpty())
+              return new BatchItemResult(tickets.getEvent(), "unavailable", Collections.emptyList());
+            if (!release)
+              return new BatchItemResult(tickets.getEvent(), "purchased", tickets.getEntries());
+
+            returnTickets(tickets);
+            return new BatchItemResult(tickets.getEvent(), "released", Collections.emptyList());
+          }).collect(Collectors.toList());
+          return new BatchTicketResponse(items);
+        }, executor);
+  }
+
+  private void returnTickets(TicketSeller.Tickets tickets) {
+    boxOfficeFor(tickets.getEvent()).tell(new ReturnTickets(tickets.getEvent(), tickets.getRanges()), ActorRef.noSender());
+  }
+
+  // 待合室が開いているイベントは、購入を許可されたトークンを持つリクエストだけを通す
+  // それ以外は列に並ばせ（トークンが有効であればその順番のまま）、202 Acceptedで順番を返す
+  // トークンは購入できた（または売り切れだった）場合だけ使い切り、流量制限やタイムアウトで失敗した場合は失効するまで使える
+  private Route waitingRoom(String event, Optional<String> token, Supplier<Route> inner) {
+    if (!waitingRoom.isOpen(event))
+      return inner.get();
+    if (token.map(t -> waitingRoom.enter(event, t)).orElse(false))
+      return mapRouteResultFuture(result -> result.whenComplete((completed, failure) ->
+          waitingRoom.leave(event, token.get(), failure == null && tokenUsed(completed))), inner);
+
+    Optional<WaitingRoom.Position> known = token.flatMap(t -> waitingRoom.position(event, t));
+    Optional<WaitingRoom.Position> position = known.isPresent() ? known : waitingRoom.join(event);
+    if (!position.isPresent())
+      return inner.get();
+
+    return respondWithHeader(RawHeader.create("Retry-After", String.valueOf(waitingRoomRetryAfter)),
+        () -> complete(StatusCodes.ACCEPTED, position.get(), positionMarshaller));
+  }
+
+  private static boolean tokenUsed(RouteResult result) {
+    if (!(result instanceof Complete))
+      return false;
+    StatusCode status = ((Complete) result).getResponse().status();
+    return status.isSuccess() || status.equals(StatusCodes.NOT_FOUND);
+  }
+
+  // Acceptヘッダーで範囲形式が明示されているか
+  private boolean acceptsRanges(HttpRequest request) {
+    return request.getHeader(Accept.class)
+        .map(accept -> StreamSupport.stream(accept.getMediaRanges().spliterator(), false)
+            .anyMatch(range -> range.matches(RANGES_MEDIA_TYPE) && !range.matches(MediaTypes.APPLICATION_JSON)))
+        .orElse(false);
+  }
+
+  private static OptionalInt parsePositiveInt(String value) {
+    try {
+      int parsed = Integer.parseInt(value);
+      return parsed > 0 ? OptionalInt.of(parsed) : OptionalInt.empty();
+    } catch (NumberFormatException e) {
+      return OptionalInt.empty();
+    }
+  }
+
+  // AcceptヘッダーでCBORが明示されているか（*/*はJSONのままにする）
+  private boolean acceptsCbor(HttpRequest request) {
+    return request.getHeader(Accept.class)
+        .map(accept -> StreamSupport.stream(accept.getMediaRanges().spliterator(), false)
+            .anyMatch(range -> range.matches(JacksonCodecs.CBOR_MEDIA_TYPE) && !range.matches(MediaTypes.APPLICATION_JSON)))
+        .orElse(false);
+  }
+
+  // チケット一覧のJSONを一括で組み立てずにチャンク単位で送る
+  private HttpEntity.Chunked streamTickets(TicketSeller.Tickets tickets) {
+    String event = JacksonCodecs.quote(tickets.getEvent());
+    Source<ByteString, NotUsed> entries = Source.from(tickets.getRanges())
+        .flatMapConcat(range -> Source.range(range.getFirst(), range.getLast()))
+        .map(id -> "{\"id\":" + id + "}")
+        .intersperse("{\"entries\":[", ",", "],\"event\":\"" + event + "\"}")
+        .grouped(1024)
+        .map(chunk -> ByteString.fromString(String.join("", chunk)));
+
+    return HttpEntities.createChunked(ContentTypes.APPLICATION_JSON, entries);
   }
 
   public Route createRoute() {
-    return route(
+    return handleRejected(() -> route(
         pathPrefix("events", () -> route(
-            // [Get all events] GET /events/
-            get(() -> pathEndOrSingleSlash(() -> {
+            // [Get a page of events] GET /events/?limit=:limit&after=:name
+            // limitは文字列で受け取って自分で検証する（数値でなければ拒否され、ページなしの一覧が返ってしまうため）
+            get(() -> pathEndOrSingleSlash(() -> parameterOptional("limit", limit ->
+                parameterOptional("after", after -> {
+                  if (!limit.isPresent() && !after.isPresent())
+                    return reject();
+                  log.debug("---------- GET /events/?limit={}&after={} ----------", limit, after);
+
+                  OptionalInt requested = limit.isPresent() ? parsePositiveInt(limit.get()) : OptionalInt.of(eventsPageSize);
+                  if (!requested.isPresent())
+                    return timed("GET /events", () -> complete(StatusCodes.BAD_REQUEST,
+                        new EventError("limit must be a positive integer."), errorMarshaller));
+
+                  int pageSize = Math.min(requested.getAsInt(), eventsPageSize);
+                  return timed("GET /events", () -> catalogConditional(() -> {
+                    CompletionStage<EventPage> futurePage = getEventPage(after.orElse(""), pageSize);
+                    return onSuccess(() -> futurePage, page -> completeOK(page, pageMarshaller));
+                  }));
+                })))),
+
+            // [Stream all events] GET /events/?stream=ndjson|json
+            get(() -> pathEndOrSingleSlash(() -> parameter("stream", stream -> timed("GET /events", () -> catalogConditional(() -> {
+              log.debug("---------- GET /events/?stream={} ----------", stream);
+
+              return complete(HttpResponse.create().withEntity(streamEventsEntity(stream.equals("ndjson"))));
+            }))))),
+
+            // [Get all events] GET /events/[?staleness=true]
+            get(() -> pathEndOrSingleSlash(() -> parameterOptional("staleness", staleness -> timed("GET /events", () -> negotiatedCatalogConditional(() -> {
               log.debug("---------- GET /events/ ----------");
 
               CompletionStage<Events> events = getEvents();
               return onSuccess(() -> events, maybeEvent -> {
                     log.debug(msg, maybeEvent);
-                    return completeOK(maybeEvent, Jackson.marshaller());
+                    if (staleness.map("true"::equals).orElse(false))
+                      return respondWithHeader(
+                          RawHeader.create(STALENESS_HEADER, String.valueOf(maybeEvent.getStaleness())),
+                          () -> completeOK(maybeEvent, eventsMarshaller));
+                    else
+                      return completeOK(maybeEvent, eventsMarshaller);
                   }
               );
-            })),
+            }))))),
+
+            // [Import events] POST /events/ (application/x-ndjson: {"name":...,"tickets":...} / text/csv: name,tickets)
+            // 失敗した行と途中経過を返しながら作成する（失敗した行があっても最後まで続ける）
+            post(() -> pathEndOrSingleSlash(() -> timed("POST /events", () -> extractRequestEntity(entity -> {
+              Optional<EventImport.Format> format = EventImport.format(entity.getContentType().mediaType());
+              if (!format.isPresent())
+                return complete(StatusCodes.UNSUPPORTED_MEDIA_TYPE);
+              log.info("---------- POST /events/ ({}) ----------", format.get());
+
+              return complete(HttpResponse.create().withEntity(HttpEntities.createChunked(NDJSON_MEDIA_TYPE.toContentType(),
+                  eventImport.run(entity.withoutSizeLimit().getDataBytes(), format.get(), this::createEvent))));
+            })))),
 
             // [Get an event] GET /events/:name/
             get(() -> pathPrefix(segment(), (String name) ->
-                pathEndOrSingleSlash(() -> {
+                pathEndOrSingleSlash(() -> timed("GET /events/:name", () -> {
                   log.debug("---------- GET /events/{}/ ----------", name);
 
+                  // 読み取り用のビューにあるイベントはアクターに問い合わせずに返す（ビューにないイベントはBoxOfficeに確認する）
+                  // ETagはバージョンと残りチケット数から作るので、一致すれば同じ内容を返すことになる
+                  OptionalLong entry = view.getEntry(name);
+                  if (entry.isPresent())
+                    return negotiatedConditional(Long.toHexString(entry.getAsLong()), () ->
+                        completeOK(new Event(name, AvailabilityView.tickets(entry.getAsLong())), eventMarshaller));
+
                   CompletionStage<Optional<Event>> futureEvent = getEvent(name);
                   return onSuccess(() -> futureEvent, maybeEvent -> {
                         log.debug(msg, maybeEvent);
                         if (maybeEvent.isPresent())
-                          return completeOK(maybeEvent.get(), Jackson.marshaller());
+                          return completeOK(maybeEvent.get(), eventMarshaller);
                         else
                           return complete(StatusCodes.NOT_FOUND);
                       }
                   );
-                }))),
+                })))),
 
             // [Create an event] POST /events/:name/ tickets:=:tickets
             post(() -> pathPrefix(segment(), (String name) ->
-                pathEndOrSingleSlash(() ->
-                    entity(Jackson.unmarshaller(EventDescription.class), event -> {
+                pathEndOrSingleSlash(() -> timed("POST /events/:name", () ->
+                    entity(eventDescriptionUnmarshaller, event -> {
                       log.debug("---------- POST /events/{}/ {\"tickets\":{}} ----------", name, event.getTickets());
 
                       CompletionStage<EventResponse> futureEventResponse = createEvent(name, event.getTickets());
@@ -97,38 +657,125 @@ class RestApi extends AllDirectives {
 
                             if (maybeEventResponse instanceof EventCreated) {
                               Event maybeEvent = ((EventCreated) maybeEventResponse).getEvent();
-                              return complete(StatusCodes.CREATED, maybeEvent, Jackson.marshaller());
+                              return complete(StatusCodes.CREATED, maybeEvent, eventMarshaller);
                             } else {
                               EventError err = new EventError(name + " exists already.");
-                              return complete(StatusCodes.BAD_REQUEST, err, Jackson.marshaller());
+                              return complete(StatusCodes.BAD_REQUEST, err, errorMarshaller);
                             }
                           }
                       );
                     })
-                ))),
+                )))),
 
-            // [Buy tickets] POST /events/:event/tickets/ tickets:=:request
+            // [Buy tickets] POST /events/:event/tickets/[?format=ranges][&token=:token] tickets:=:request
             post(() -> pathPrefix(segment().slash(segment("tickets")), (String event) ->
-                pathEndOrSingleSlash(() ->
-                    entity(Jackson.unmarshaller(TicketRequest.class), request -> {
-                      log.debug("---------- POST /events/{}/tickets/ {\"tickets\":{}} ----------", event, request.getTickets());
+                pathEndOrSingleSlash(() -> timed("POST /events/:event/tickets", () -> parameterOptional("format", format -> extractRequest(httpRequest ->
+                    entity(ticketRequestUnmarshaller, request -> parameterOptional("token", token -> waitingRoom(event, token, () -> {
+                      if (log.isDebugEnabled())
+                        log.debug("---------- POST /events/{}/tickets/ {\"tickets\":{}} ----------", event, request.getTickets());
 
+                      boolean ranges = format.map("ranges"::equals).orElse(false) || acceptsRanges(httpRequest);
                       CompletionStage<TicketSeller.Tickets> futureTickets = requestTickets(event, request.getTickets());
                       return onSuccess(() -> futureTickets, maybeTickets -> {
                             log.debug(msg, maybeTickets);
 
-                            if (maybeTickets.getEntries().isEmpty())
+                            int count = maybeTickets.size();
+                            if (count == 0)
                               return complete(StatusCodes.NOT_FOUND);
+                            else if (ranges)
+                              return complete(StatusCodes.CREATED, new TicketRanges(maybeTickets), rangesMarshaller);
+                            else if (count >= streamThreshold && !acceptsCbor(httpRequest))
+                              return complete(HttpResponse.create()
+                                  .withStatus(StatusCodes.CREATED)
+                                  .withEntity(streamTickets(maybeTickets)));
                             else
-                              return complete(StatusCodes.CREATED, maybeTickets, Jackson.marshaller());
+                              return complete(StatusCodes.CREATED, maybeTickets, ticketsMarshaller);
                           }
                       );
-                    })
-                ))),
+                    })))
+                )))))),
+
+            // [Hold tickets] POST /events/:event/holds/ tickets:=:request
+            post(() -> pathPrefix(segment().slash(segment("holds")), (String event) ->
+                pathEndOrSingleSlash(() -> timed("POST /events/:event/holds", () ->
+                    entity(ticketRequestUnmarshaller, request -> {
+                      log.debug("---------- POST /events/{}/holds/ {\"tickets\":{}} ----------", event, request.getTickets());
+
+                      CompletionStage<Object> futureHold = holdTickets(event, request.getTickets());
+                      return onSuccess(() -> futureHold, maybeHold -> {
+                            log.debug(msg, maybeHold);
+
+                            if (maybeHold instanceof TicketSeller.HoldCreated)
+                              return complete(StatusCodes.CREATED, new HoldResponse((TicketSeller.HoldCreated) maybeHold), holdMarshaller);
+                            else
+                              return complete(StatusCodes.NOT_FOUND);
+                          }
+                      );
+                    }))))),
+
+            // [Confirm a hold] POST /events/:event/holds/:id/confirm/
+            post(() -> pathPrefix(segment().slash(segment("holds")).slash(longSegment()).slash(segment("confirm")), (String event, Long id) ->
+                pathEndOrSingleSlash(() -> timed("POST /events/:event/holds/:id/confirm", () -> {
+                  log.debug("---------- POST /events/{}/holds/{}/confirm/ ----------", event, id);
+
+                  CompletionStage<Optional<TicketSeller.Tickets>> futureTickets = confirmHold(event, id);
+                  return onSuccess(() -> futureTickets, maybeTickets -> {
+                        log.debug(msg, maybeTickets);
+
+                        if (maybeTickets.isPresent())
+                          return complete(StatusCodes.CREATED, maybeTickets.get(), ticketsMarshaller);
+                        else
+                          return complete(StatusCodes.NOT_FOUND);
+                      }
+                  );
+                })))),
+
+            // [Release a hold] DELETE /events/:event/holds/:id/
+            delete(() -> pathPrefix(segment().slash(segment("holds")).slash(longSegment()), (String event, Long id) ->
+                pathEndOrSingleSlash(() -> timed("DELETE /events/:event/holds/:id", () -> {
+                  log.debug("---------- DELETE /events/{}/holds/{}/ ----------", event, id);
+
+                  CompletionStage<Optional<TicketSeller.Tickets>> futureTickets = releaseHold(event, id);
+                  return onSuccess(() -> futureTickets, maybeTickets -> {
+                        log.debug(msg, maybeTickets);
+
+                        if (maybeTickets.isPresent())
+                          return complete(StatusCodes.NO_CONTENT);
+                        else
+                          return complete(StatusCodes.NOT_FOUND);
+                      }
+                  );
+                })))),
+
+            // [Open a waiting room] PUT /events/:event/waiting-room/
+            put(() -> pathPrefix(segment().slash(segment("waiting-room")), (String event) ->
+                pathEndOrSingleSlash(() -> timed("PUT /events/:event/waiting-room", () -> {
+                  log.debug("---------- PUT /events/{}/waiting-room/ ----------", event);
+
+                  return complete(waitingRoom.open(event) ? StatusCodes.CREATED : StatusCodes.OK);
+                })))),
+
+            // [Close a waiting room] DELETE /events/:event/waiting-room/
+            delete(() -> pathPrefix(segment().slash(segment("waiting-room")), (String event) ->
+                pathEndOrSingleSlash(() -> timed("DELETE /events/:event/waiting-room", () -> {
+                  log.debug("---------- DELETE /events/{}/waiting-room/ ----------", event);
+
+                  return complete(waitingRoom.close(event) ? StatusCodes.NO_CONTENT : StatusCodes.NOT_FOUND);
+                })))),
+
+            // [Check the position in a waiting room] GET /events/:event/waiting-room/:token/
+            get(() -> pathPrefix(segment().slash(segment("waiting-room")).slash(segment()), (String event, String token) ->
+                pathEndOrSingleSlash(() -> timed("GET /events/:event/waiting-room/:token", () -> {
+                  Optional<WaitingRoom.Position> position = waitingRoom.position(event, token);
+                  if (position.isPresent())
+                    return completeOK(position.get(), positionMarshaller);
+                  else
+                    return complete(StatusCodes.NOT_FOUND);
+                })))),
 
             // [Cancel an event] DELETE /events/:name/
             delete(() -> pathPrefix(segment(), (String name) ->
-                pathEndOrSingleSlash(() -> {
+                pathEndOrSingleSlash(() -> timed("DELETE /events/:name", () -> {
                       log.debug("---------- DELETE /events/{}/ ----------", name);
 
                       CompletionStage<Optional<Event>> futureEvent = cancelEvent(name);
@@ -136,15 +783,47 @@ class RestApi extends AllDirectives {
                             log.debug(msg, maybeEvent);
 
                             if (maybeEvent.isPresent())
-                              return completeOK(maybeEvent.get(), Jackson.marshaller());
+                              return completeOK(maybeEvent.get(), eventMarshaller);
                             else
                               return complete(StatusCodes.NOT_FOUND);
                           }
                       );
                     }
-                )))
-        ))
-    );
+                ))))
+        )),
+
+        // [Buy tickets of several events] POST /tickets/ items:=[{event, tickets}] allOrNothing:=:flag
+        pathPrefix("tickets", () -> post(() -> pathEndOrSingleSlash(() -> timed("POST /tickets", () ->
+            entity(batchRequestUnmarshaller, request -> {
+              log.debug("---------- POST /tickets/ {} items ----------", request.getItems().size());
+
+              // イベント名のない項目や枚数が1未満の項目があれば、何も購入せずに400を返す
+              if (request.getItems().stream().anyMatch(item ->
+                  item.getEvent() == null || item.getEvent().isEmpty() || item.getTickets() <= 0))
+                return complete(StatusCodes.BAD_REQUEST,
+                    new EventError("Every item needs an event and a positive number of tickets."), errorMarshaller);
+
+              CompletionStage<BatchTicketResponse> futureResponse = requestBatch(request);
+              return onSuccess(() -> futureResponse, response -> {
+                    log.debug(msg, response);
+
+                    boolean purchased = response.getItems().stream().anyMatch(item -> item.getStatus().equals("purchased"));
+                    boolean released = response.getItems().stream().anyMatch(item -> item.getStatus().equals("released"));
+                    if (purchased)
+                      return complete(StatusCodes.CREATED, response, batchMarshaller);
+                    else if (released)
+                      return complete(StatusCodes.CONFLICT, response, batchMarshaller);
+                    else
+                      return complete(StatusCodes.NOT_FOUND, response, batchMarshaller);
+                  }
+              );
+            })
+        )))),
+
+        // [Metrics] GET /metrics
+        path("metrics", () -> get(() ->
+            complete(HttpResponse.create().withEntity(HttpEntities.create(ContentTypes.TEXT_PLAIN_UTF8, metrics.render())))))
+    ));
 
   }
 
@@ -0,0 +1,141 @@
+package com.goticks;
+
+import akka.actor.AbstractActorWithTimers;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.PartialFunction;
+import scala.runtime.BoxedUnit;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// TicketSellerの販売をイベントストリームで受け取り、SalesJournalに記録する監査用のアクター
+// ディスクへの同期は一定件数ごと、または一定間隔ごとにまとめて行う（グループコミット）
+public class SalesAudit extends AbstractActorWithTimers {
+  private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
+  private final String msg = "  📩 {}";
+
+  // propsの定義
+  public static Props props(Config config) {
+    return Props.create(SalesAudit.class, () -> new SalesAudit(config))
+        .withMailbox("goticks.mailboxes.sales-audit");
+  }
+
+  private final Path file;
+  private final int recordsPerSegment;
+  private final int batchSize;
+  private final Duration fsyncInterval;
+  private final Metrics.Histogram processing = Metrics.get(getContext().getSystem()).processing("SalesAudit");
+
+  // コンストラクタ
+  private SalesAudit(Config config) {
+    this.file = Paths.get(config.getString("file"));
+    this.recordsPerSegment = config.getInt("records-per-segment");
+    this.batchSize = config.getInt("batch-size");
+    this.fsyncInterval = config.getDuration("fsync-interval");
+  }
+
+  // メッセージプロトコルの定義
+  // ------------------------------------------>
+  public static class GetSold extends AbstractMessage {
+    private final String event;
+
+    public GetSold(String event) {
+      this.event = event;
+    }
+
+    public String getEvent() {
+      return event;
+    }
+  }
+
+  public static class Sold extends AbstractMessage {
+    private final String event;
+    private final long tickets;
+
+    public Sold(String event, long tickets) {
+      this.event = event;
+      this.tickets = tickets;
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public long getTickets() {
+      return tickets;
+    }
+  }
+
+  private static class Fsync extends AbstractMessage {
+  }
+  // <------------------------------------------
+
+  private SalesJournal journal;
+
+  // イベントID -> 販売済みの枚数
+  private final Map<Long, Long> sold = new HashMap<>();
+
+  @Override
+  public void preStart() throws Exception {
+    long started = System.nanoTime();
+    journal = new SalesJournal(file, recordsPerSegment, (eventId, first, last, timestamp) ->
+        sold.merge(eventId, timestamp > 0 ? (long) last - first + 1 : (long) first - last - 1, Long::sum));
+    log.info("Sales journal {} rebuilt in {} ms ({} records, {} events)",
+        file, (System.nanoTime() - started) / 1000000, journal.size(), sold.size());
+
+    getContext().getSystem().eventStream().subscribe(getSelf(), TicketSeller.Tickets.class);
+    getContext().getSystem().eventStream().subscribe(getSelf(), TicketSeller.Returned.class);
+    getTimers().startPeriodicTimer(Fsync.class, new Fsync(), fsyncInterval);
+  }
+
+  @Override
+  public void postStop() throws Exception {
+    if (journal != null)
+      journal.close();
+  }
+
+  // メッセージ1件の処理時間を記録する
+  @Override
+  public void aroundReceive(PartialFunction<Object, BoxedUnit> receive, Object msg) {
+    long started = System.nanoTime();
+    super.aroundReceive(receive, msg);
+    processing.record(System.nanoTime() - started);
+  }
+
+  private void record(String event, List<TicketSeller.TicketRange> ranges, long timestamp) throws IOException {
+    long eventId = SalesJournal.eventId(event);
+    long sign = timestamp > 0 ? 1 : -1;
+    for (TicketSeller.TicketRange range : ranges) {
+      journal.append(eventId, range.getFirst(), range.getLast(), timestamp);
+      sold.merge(eventId, sign * range.size(), Long::sum);
+    }
+
+    if (journal.pending() >= batchSize)
+      journal.force();
+  }
+
+  @Override
+  public Receive createReceive() {
+    return receiveBuilder()
+        .match(TicketSeller.Tickets.class, tickets ->
+            record(tickets.getEvent(), tickets.getRanges(), System.currentTimeMillis()))
+        .match(TicketSeller.Returned.class, returned ->
+            record(returned.getEvent(), returned.getRanges(), -System.currentTimeMillis()))
+        .match(Fsync.class, fsync -> journal.force())
+        .match(GetSold.class, getSold -> {
+          log.debug(msg, getSold);
+
+          long tickets = sold.getOrDefault(SalesJournal.eventId(getSold.event), 0L);
+          getContext().sender().tell(new Sold(getSold.event, tickets), getSelf());
+        })
+        .build();
+  }
+}
@@ -0,0 +1,121 @@
+package com.goticks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// 販売記録を固定長のバイナリレコードとしてメモリマップドファイルに追記するジャーナル
+// レコード: イベントID(long) | 先頭チケットID(int) | 末尾チケットID(int) | タイムスタンプ(long)
+// 在庫に戻したチケットはタイムスタンプを負の値にして記録する
+// 書き込みはメモリへのコピーだけで、ディスクへの同期は force() をまとめて呼ぶ側が決める（スレッドセーフではない）
+class SalesJournal implements Closeable {
+  static final int RECORD_SIZE = 24;
+
+  // 1レコード分の読み出し
+  interface RecordVisitor {
+    void visit(long eventId, int first, int last, long timestamp);
+  }
+
+  private final FileChannel channel;
+  private final long segmentSize;
+  private MappedByteBuffer segment;
+  private long segmentStart;
+  private long records;
+  private long pending = 0;
+
+  // 既存のレコードをvisitorに渡しながら末尾まで読み、その後ろから追記する
+  SalesJournal(Path file, int recordsPerSegment, RecordVisitor visitor) throws IOException {
+    if (file.getParent() != null)
+      Files.createDirectories(file.getParent());
+
+    this.records = read(file, visitor);
+    this.segmentSize = (long) recordsPerSegment * RECORD_SIZE;
+    this.channel = FileChannel.open(file,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    long position = records * RECORD_SIZE;
+    map(position - position % segmentSize);
+    segment.position((int) (position - segmentStart));
+  }
+
+  // イベント名から固定長のイベントIDを作る（64bit FNV-1a）
+  static long eventId(String event) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : event.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  void append(long eventId, int first, int last, long timestamp) throws IOException {
+    if (segment.remaining() < RECORD_SIZE)
+      map(segmentStart + segmentSize);
+
+    segment.putLong(eventId).putInt(first).putInt(last).putLong(timestamp);
+    records++;
+    pending++;
+  }
+
+  // 前回の同期以降に追記したレコードをディスクに書き出す
+  void force() {
+    if (pending > 0) {
+      segment.force();
+      pending = 0;
+    }
+  }
+
+  long pending() {
+    return pending;
+  }
+
+  long size() {
+    return records;
+  }
+
+  @Override
+  public void close() throws IOException {
+    force();
+    channel.close();
+  }
+
+  private void map(long start) throws IOException {
+    if (segment != null)
+      segment.force();
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, start, segmentSize);
+    segmentStart = start;
+  }
+
+  // ジャーナルを先頭から順に読み、読んだレコード数を返す
+  // 未使用の領域（タイムスタンプが0のレコード）に達したら終了する
+  static long read(Path file, RecordVisitor visitor) throws IOException {
+    if (!Files.exists(file))
+      return 0;
+
+    long count = 0;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size() - channel.size() % RECORD_SIZE;
+      long chunkSize = (long) RECORD_SIZE * (1 << 20);
+      for (long start = 0; start < size; start += chunkSize) {
+        MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, size - start));
+        while (chunk.remaining() >= RECORD_SIZE) {
+          long eventId = chunk.getLong();
+          int first = chunk.getInt();
+          int last = chunk.getInt();
+          long timestamp = chunk.getLong();
+          if (timestamp == 0)
+            return count;
+
+          visitor.visit(eventId, first, last, timestamp);
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+}
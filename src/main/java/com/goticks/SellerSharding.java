@@ -0,0 +1,84 @@
+package com.goticks;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.ActorPaths;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardRegion;
+import akka.persistence.journal.leveldb.SharedLeveldbJournal;
+import akka.persistence.journal.leveldb.SharedLeveldbStore;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+
+// TicketSellerをクラスターシャーディングで複数のノードに分散する（goticks.cluster.enabled = on）
+// エンティティIDはイベント名で、どのノードのBoxOfficeからもシャードリージョン経由で同じTicketSellerに届く
+// 残りチケット数のビューは分散データ（LWWMap）で全ノードに複製する
+class SellerSharding {
+  static final String TYPE_NAME = "TicketSeller";
+
+  // イベント名 -> 残りチケット数
+  static final Key<LWWMap<String, Integer>> AVAILABILITY_KEY = LWWMapKey.create("goticks-availability");
+
+  // シャードリージョンに送るメッセージ（eventのTicketSellerにmessageを届ける）
+  static class Envelope extends AbstractMessage {
+    private final String event;
+    private final Object message;
+
+    Envelope(String event, Object message) {
+      this.event = event;
+      this.message = message;
+    }
+
+    @Override
+    public String toString() {
+      return "SellerSharding.Envelope[event=" + event + ",message=" + message + "]";
+    }
+  }
+
+  private static class Extractor extends ShardRegion.HashCodeMessageExtractor {
+    Extractor(int numberOfShards) {
+      super(numberOfShards);
+    }
+
+    @Override
+    public String entityId(Object message) {
+      return message instanceof Envelope ? ((Envelope) message).event : null;
+    }
+
+    @Override
+    public Object entityMessage(Object message) {
+      return ((Envelope) message).message;
+    }
+  }
+
+  // このノードのシャードリージョンを起動する
+  static ActorRef start(ActorSystem system) {
+    Config config = system.settings().config();
+    Duration availabilityInterval = config.getDuration("goticks.box-office.availability-interval");
+    return ClusterSharding.get(system).start(TYPE_NAME,
+        TicketSeller.shardedProps(availabilityInterval).withDispatcher(config.getString("goticks.ticket-seller.dispatcher")),
+        ClusterShardingSettings.create(system),
+        new Extractor(config.getInt("goticks.cluster.number-of-shards")));
+  }
+
+  // 共有LevelDBジャーナル（1台のマシンで複数のノードを動かす場合の開発・テスト用）
+  // goticks.cluster.shared-journal-store のアドレスのノードがストアを起動し、他のノードはそれを参照する
+  static CompletionStage<Void> startSharedJournal(ActorSystem system) {
+    String path = system.settings().config().getString("goticks.cluster.shared-journal-store");
+    Address storeAddress = ActorPaths.fromString(path).address();
+    if (storeAddress.equals(Cluster.get(system).selfAddress()))
+      system.actorOf(Props.create(SharedLeveldbStore.class), "store");
+
+    return system.actorSelection(path).resolveOneCS(Duration.ofSeconds(30))
+        .thenAccept(store -> SharedLeveldbJournal.setStore(store, system));
+  }
+}
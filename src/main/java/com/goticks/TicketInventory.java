@@ -0,0 +1,119 @@
+package com.goticks;
+
+import com.goticks.TicketSeller.TicketRange;
+
+import java.util.*;
+
+// 販売可能なチケットIDを重ならない範囲 [first..last] の集合として保持する
+// メモリと計算量はチケットの枚数ではなく範囲の数に比例する
+class TicketInventory {
+  // 範囲の末尾ID -> 先頭ID
+  // 先頭から取り出す時に末尾は変わらないので、エントリを作り直さずに先頭IDだけを書き換えられる
+  private final TreeMap<Integer, Integer> ranges = new TreeMap<>();
+  private int size = 0;
+
+  // 範囲を追加する（隣接・重複する範囲はまとめる）
+  void add(int first, int last) {
+    if (first > last)
+      return;
+
+    int lo = first;
+    int hi = last;
+
+    // 末尾が first - 1 以上で、先頭が last + 1 以下の範囲と重なるか隣接する
+    Map.Entry<Integer, Integer> next = ranges.ceilingEntry(Math.max(first, Integer.MIN_VALUE + 1) - 1);
+    while (next != null && next.getValue() <= (long) last + 1) {
+      lo = Math.min(lo, next.getValue());
+      hi = Math.max(hi, next.getKey());
+      remove(next);
+      next = ranges.higherEntry(next.getKey());
+    }
+
+    put(lo, hi);
+  }
+
+  void add(TicketRange range) {
+    add(range.getFirst(), range.getLast());
+  }
+
+  // 先頭から count 枚を取り出す（在庫が足りない場合は何も取り出さない）
+  // ほとんどのBuyは先頭の範囲だけで足りるので、その場合はリストを作らずに1要素のリストを返す
+  List<TicketRange> take(int count) {
+    if (count <= 0 || count > size)
+      return Collections.emptyList();
+
+    TicketRange first = takeFromHead(count);
+    int remaining = count - first.size();
+    if (remaining == 0) {
+      size -= count;
+      return Collections.singletonList(first);
+    }
+
+    List<TicketRange> taken = new ArrayList<>();
+    taken.add(first);
+    while (remaining > 0) {
+      TicketRange range = takeFromHead(remaining);
+      taken.add(range);
+      remaining -= range.size();
+    }
+    size -= count;
+    return taken;
+  }
+
+  // 先頭の範囲から最大 count 枚を取り出す（size はそのまま）
+  private TicketRange takeFromHead(int count) {
+    Integer last = ranges.firstKey();
+    int first = ranges.get(last);
+    if (last - first + 1 > count) {
+      int end = first + count - 1;
+      ranges.put(last, end + 1);
+      return new TicketRange(first, end);
+    }
+
+    ranges.remove(last);
+    return new TicketRange(first, last);
+  }
+
+  // 指定した範囲に含まれるチケットを取り除く
+  void remove(int first, int last) {
+    if (first > last)
+      return;
+
+    // [first..last] と重なる範囲を取り出し、はみ出した部分だけを戻す
+    Map.Entry<Integer, Integer> next = ranges.ceilingEntry(first);
+    while (next != null && next.getValue() <= last) {
+      int lo = next.getValue();
+      int hi = next.getKey();
+      remove(next);
+      if (lo < first)
+        put(lo, first - 1);
+      if (hi > last)
+        put(last + 1, hi);
+      next = ranges.higherEntry(hi);
+    }
+  }
+
+  void remove(TicketRange range) {
+    remove(range.getFirst(), range.getLast());
+  }
+
+  int size() {
+    return size;
+  }
+
+  List<TicketRange> ranges() {
+    List<TicketRange> result = new ArrayList<>(ranges.size());
+    ranges.forEach((last, first) -> result.add(new TicketRange(first, last)));
+    return result;
+  }
+
+  private void put(int first, int last) {
+    ranges.put(last, first);
+    size += last - first + 1;
+  }
+
+  private void remove(Map.Entry<Integer, Integer> entry) {
+    ranges.remove(entry.getKey());
+    size -= entry.getKey() - entry.getValue() + 1;
+  }
+}
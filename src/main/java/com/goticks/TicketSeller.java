@@ -1,42 +1,120 @@
 package com.goticks;
 
-import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.NotInfluenceReceiveTimeout;
 import akka.actor.PoisonPill;
 import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.cluster.Cluster;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.sharding.ShardRegion;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.persistence.*;
+import com.typesafe.config.Config;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import scala.PartialFunction;
+import scala.runtime.BoxedUnit;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 import java.util.stream.*;
 
 // アクタークラスの定義
-public class TicketSeller extends AbstractActor {
+public class TicketSeller extends AbstractPersistentActorWithTimers {
   private final LoggingAdapter log = Logging.getLogger(getContext().getSystem(), this);
   private final String msg = " 📩 {}";
 
   // propsの定義
-  public static Props props(String event) {
-    return Props.create(TicketSeller.class, () -> new TicketSeller(event));
+  public static Props props(String event, String persistenceId, Duration availabilityInterval) {
+    return Props.create(TicketSeller.class, () -> new TicketSeller(event, persistenceId, availabilityInterval))
+        .withMailbox("goticks.mailboxes.ticket-seller");
   }
 
+  // クラスターシャーディングで起動する場合のprops（イベント名はエンティティIDから取る）
+  public static Props shardedProps(Duration availabilityInterval) {
+    return Props.create(TicketSeller.class, () -> new TicketSeller(availabilityInterval))
+        .withMailbox("goticks.mailboxes.ticket-seller");
+  }
+
+  private final boolean sharded;
   private final String event;
+  private final String persistenceId;
+  private final Duration availabilityInterval;
+  private final int snapshotInterval;
+  private final int buyBatchSize;
+  private final boolean trackInFlight;
+  private final Duration holdTtl;
+  private final Duration holdTick;
+  private final Duration passivateAfter;
+  private final Metrics metrics;
+  private final AvailabilityView view;
+  private final Metrics.Histogram processing;
+  private final LongAdder soldCounter;
 
   // コンストラクタ
-  private TicketSeller(String event) {
-    this.event = event;
+  // availabilityIntervalが0の場合は変更の度に、それ以外は一定間隔で残り枚数をBoxOfficeに通知する
+  // buyBatchSizeが1より大きい場合は、メールボックスに溜まったBuyをまとめて処理する
+  private TicketSeller(String event, String persistenceId, Duration availabilityInterval) {
+    this.sharded = event == null;
+    this.event = sharded ? entityId() : event;
+    this.persistenceId = sharded ? "ticket-seller-" + this.event : persistenceId;
+    this.created = !sharded;
+    this.availabilityInterval = availabilityInterval;
+    this.snapshotInterval = getContext().getSystem().settings().config().getInt("goticks.persistence.snapshot-interval");
+    this.buyBatchSize = getContext().getSystem().settings().config().getInt("goticks.ticket-seller.buy-batch-size");
+    this.trackInFlight = !sharded &&
+        getContext().getSystem().settings().config().getInt("goticks.box-office.admission.max-in-flight") > 0;
+    Config holdConfig = getContext().getSystem().settings().config().getConfig("goticks.ticket-seller.holds");
+    this.holdTtl = holdConfig.getDuration("ttl");
+    this.holdTick = holdConfig.getDuration("tick");
+    this.holdTimers = new TimerWheel<>(holdTick.toMillis(), holdConfig.getInt("wheel-size"), System.currentTimeMillis());
+    this.passivateAfter = getContext().getSystem().settings().config().getDuration("goticks.ticket-seller.passivate-after");
+    this.metrics = Metrics.get(getContext().getSystem());
+    this.view = AvailabilityView.get(getContext().getSystem());
+    this.processing = metrics.processing("TicketSeller");
+    this.soldCounter = metrics.ticketsSold(this.event);
+    this.soldOut = new Tickets(this.event);
+    if (!availabilityInterval.isZero())
+      timers().startPeriodicTimer(PublishAvailability.class, new PublishAvailability(), availabilityInterval);
+  }
+
+  // シャーディングではイベント名を1つのIDとしてずっと使う（キャンセル時にジャーナルは削除する）
+  private TicketSeller(Duration availabilityInterval) {
+    this(null, null, availabilityInterval);
+  }
+
+  // シャードはエンティティIDをURLエンコードしてアクター名にする
+  private String entityId() {
+    try {
+      return URLDecoder.decode(getSelf().path().name(), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public String persistenceId() {
+    return persistenceId;
   }
 
   // メッセージプロトコルの定義
   // ------------------------------------------>
   public static class Add extends AbstractMessage {
-    private final List<Ticket> tickets;
+    private final List<TicketRange> ranges;
 
-    public Add(List<Ticket> tickets) {
-      this.tickets = Collections.unmodifiableList(tickets);
+    public Add(List<TicketRange> ranges) {
+      this.ranges = Collections.unmodifiableList(ranges);
     }
 
-    public List<Ticket> getTickets() {
-      return tickets;
+    public List<TicketRange> getRanges() {
+      return ranges;
     }
   }
 
@@ -50,51 +128,672 @@ public class TicketSeller extends AbstractActor {
     public int getId() {
       return id;
     }
+
+    @Override
+    public String toString() {
+      return "TicketSeller.Ticket[id=" + id + "]";
+    }
+  }
+
+  // 連続したチケットIDの範囲 [first..last]
+  public static class TicketRange extends AbstractMessage {
+    private final int first;
+    private final int last;
+
+    public TicketRange(int first, int last) {
+      this.first = first;
+      this.last = last;
+    }
+
+    public int getFirst() {
+      return first;
+    }
+
+    public int getLast() {
+      return last;
+    }
+
+    public int size() {
+      return Math.max(0, last - first + 1);
+    }
+
+    @Override
+    public String toString() {
+      return "TicketSeller.TicketRange[first=" + first + ",last=" + last + "]";
+    }
   }
 
   public static class Tickets extends AbstractMessage {
     private final String event;
-    private final List<Ticket> entries;
+    private final List<TicketRange> ranges;
 
-    public Tickets(String event, List<Ticket> entries) {
+    public Tickets(String event, List<TicketRange> ranges) {
       this.event = event;
-      this.entries = Collections.unmodifiableList(entries);
+      this.ranges = Collections.unmodifiableList(ranges);
     }
 
     public Tickets(String event) {
       this.event = event;
-      this.entries = new ArrayList<>();
+      this.ranges = Collections.emptyList();
     }
 
     public String getEvent() {
       return event;
     }
 
+    // JSONの形式は変えずに、範囲からチケットを必要な時に生成する
     public List<Ticket> getEntries() {
-      return entries;
+      return new TicketEntries(ranges);
+    }
+
+    @JsonIgnore
+    public List<TicketRange> getRanges() {
+      return ranges;
+    }
+
+    // チケットの枚数（getEntries()を作らずに数える）
+    public int size() {
+      return TicketEntries.size(ranges);
+    }
+
+    @Override
+    public String toString() {
+      return "TicketSeller.Tickets[event=" + event + ",ranges=" + ranges + "]";
+    }
+  }
+
+  private static class TicketEntries extends AbstractList<Ticket> {
+    private final List<TicketRange> ranges;
+    private final int size;
+
+    TicketEntries(List<TicketRange> ranges) {
+      this.ranges = ranges;
+      this.size = size(ranges);
+    }
+
+    static int size(List<TicketRange> ranges) {
+      int size = 0;
+      for (int i = 0; i < ranges.size(); i++)
+        size += ranges.get(i).size();
+      return size;
+    }
+
+    @Override
+    public Ticket get(int index) {
+      if (index < 0 || index >= size)
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+      int offset = index;
+      for (TicketRange range : ranges) {
+        if (offset < range.size())
+          return new Ticket(range.getFirst() + offset);
+        offset -= range.size();
+      }
+      throw new IllegalStateException();
+    }
+
+    // 範囲を順にたどる（ストリームを使わないイテレーター）
+    @Override
+    public Iterator<Ticket> iterator() {
+      return new Iterator<Ticket>() {
+        private int range = 0;
+        private long next = ranges.isEmpty() ? 0 : ranges.get(0).getFirst();
+
+        @Override
+        public boolean hasNext() {
+          while (range < ranges.size() && next > ranges.get(range).getLast()) {
+            range++;
+            if (range < ranges.size())
+              next = ranges.get(range).getFirst();
+          }
+          return range < ranges.size();
+        }
+
+        @Override
+        public Ticket next() {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          return new Ticket((int) next++);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return size;
     }
   }
 
   public static class Buy extends AbstractMessage {
+    // よく使う枚数のBuyは使い回す（イミュータブルなので共有できる）
+    private static final Buy[] CACHED = new Buy[16];
+
+    static {
+      for (int i = 0; i < CACHED.length; i++)
+        CACHED[i] = new Buy(i);
+    }
+
     private final int tickets;
 
     public Buy(int tickets) {
       this.tickets = tickets;
     }
 
+    public static Buy of(int tickets) {
+      return tickets >= 0 && tickets < CACHED.length ? CACHED[tickets] : new Buy(tickets);
+    }
+
+    public int getTickets() {
+      return tickets;
+    }
+
+    @Override
+    public String toString() {
+      return "TicketSeller.Buy[tickets=" + tickets + "]";
+    }
+  }
+
+  // 購入済みのチケットを在庫に戻す
+  public static class Return extends AbstractMessage {
+    private final List<TicketRange> ranges;
+
+    public Return(List<TicketRange> ranges) {
+      this.ranges = Collections.unmodifiableList(ranges);
+    }
+
+    public List<TicketRange> getRanges() {
+      return ranges;
+    }
+  }
+
+  // 在庫に戻したチケット（イベントストリームでSalesAuditに通知する）
+  public static class Returned extends AbstractMessage {
+    private final String event;
+    private final List<TicketRange> ranges;
+
+    public Returned(String event, List<TicketRange> ranges) {
+      this.event = event;
+      this.ranges = Collections.unmodifiableList(ranges);
+    }
+
+    public String getEvent() {
+      return event;
+    }
+
+    public List<TicketRange> getRanges() {
+      return ranges;
+    }
+  }
+
+  // チケットを仮押さえする（期限までにConfirmしなければ在庫に戻る）
+  public static class Hold extends AbstractMessage {
+    private final int tickets;
+
+    public Hold(int tickets) {
+      this.tickets = tickets;
+    }
+
     public int getTickets() {
       return tickets;
     }
   }
 
+  // 仮押さえしたチケットと、そのIDと期限（エポックミリ秒）
+  public static class HoldCreated extends AbstractMessage {
+    private final long id;
+    private final Tickets tickets;
+    private final long expiresAt;
+
+    public HoldCreated(long id, Tickets tickets, long expiresAt) {
+      this.id = id;
+      this.tickets = tickets;
+      this.expiresAt = expiresAt;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public Tickets getTickets() {
+      return tickets;
+    }
+
+    public long getExpiresAt() {
+      return expiresAt;
+    }
+  }
+
+  // 仮押さえしたチケットを購入する
+  public static class Confirm extends AbstractMessage {
+    private final long id;
+
+    public Confirm(long id) {
+      this.id = id;
+    }
+
+    public long getId() {
+      return id;
+    }
+  }
+
+  // 仮押さえしたチケットを在庫に戻す
+  public static class Release extends AbstractMessage {
+    private final long id;
+
+    public Release(long id) {
+      this.id = id;
+    }
+
+    public long getId() {
+      return id;
+    }
+  }
+
   public static class GetEvent extends AbstractMessage {
   }
 
+  // シャーディングでイベントを作る（作成済みならEventExistsを返す）
+  public static class Create extends AbstractMessage {
+    private final int tickets;
+
+    public Create(int tickets) {
+      this.tickets = tickets;
+    }
+
+    public int getTickets() {
+      return tickets;
+    }
+  }
+
   public static class Cancel extends AbstractMessage {
   }
+
+  // パッシベーションのための停止（保存中のイベントを待ってから止まるように、PoisonPillではなく通常のメッセージにする）
+  public static class Stop extends AbstractMessage {
+  }
+
+  // 定期的なメッセージでは停止までの時間をリセットしない
+  private static class PublishAvailability extends AbstractMessage implements NotInfluenceReceiveTimeout {
+  }
+
+  // それまでに受け取ったBuyをまとめて処理する合図
+  private static class FlushBuys extends AbstractMessage {
+    private static final FlushBuys INSTANCE = new FlushBuys();
+  }
+
+  // 期限切れの仮押さえを在庫に戻す合図
+  private static class ExpireHolds extends AbstractMessage implements NotInfluenceReceiveTimeout {
+  }
   // <------------------------------------------
 
-  private final List<Ticket> tickets = new ArrayList<>();
+  // ジャーナルに保存するイベントとスナップショット
+  // ------------------------------------------>
+  static class Sold extends AbstractMessage {
+    private final List<TicketRange> ranges;
+
+    Sold(List<TicketRange> ranges) {
+      this.ranges = ranges;
+    }
+  }
+
+  static class HoldPlaced extends AbstractMessage {
+    private final long id;
+    private final List<TicketRange> ranges;
+    private final long expiresAt;
+
+    HoldPlaced(long id, List<TicketRange> ranges, long expiresAt) {
+      this.id = id;
+      this.ranges = ranges;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  static class HoldConfirmed extends AbstractMessage {
+    private final long id;
+
+    HoldConfirmed(long id) {
+      this.id = id;
+    }
+  }
+
+  // 在庫に戻した（取り消した、または期限が切れた）仮押さえ
+  static class HoldsReleased extends AbstractMessage {
+    private final List<Long> ids;
+
+    HoldsReleased(List<Long> ids) {
+      this.ids = ids;
+    }
+  }
+
+  static class Snapshot extends AbstractMessage {
+    private final List<TicketRange> ranges;
+    private final List<HoldPlaced> holds;
+    private final long nextHoldId;
+
+    Snapshot(List<TicketRange> ranges, List<HoldPlaced> holds, long nextHoldId) {
+      this.ranges = ranges;
+      this.holds = holds;
+      this.nextHoldId = nextHoldId;
+    }
+  }
+  // <------------------------------------------
+
+  private final TicketInventory tickets = new TicketInventory();
+  // 売り切れの返信は使い回す
+  private final Tickets soldOut;
+
+  private final long recoveryStarted = System.nanoTime();
+  private int replayed = 0;
+
+  // まとめて処理する前のBuyとその送信者
+  private final List<Buy> pendingBuys = new ArrayList<>();
+  private final List<ActorRef> pendingBuyers = new ArrayList<>();
+  private boolean flushScheduled = false;
+
+  // 仮押さえ中のチケット（在庫からは取り出してある）と、期限切れを取り出すタイマーホイール
+  // 確定・取り消し済みの仮押さえはホイールから取り出された時に無視する
+  private final Map<Long, HoldPlaced> holds = new HashMap<>();
+  private final TimerWheel<Long> holdTimers;
+  private long nextHoldId = 1;
+
+  // 停止のためのスナップショットを保存中
+  private boolean passivating = false;
+
+  // シャーディングではCreateを保存するまでイベントは存在しない
+  private boolean created;
+  // 分散データに最後に書き込んだ残りチケット数（変わらなければ書き込まない）
+  private int published = -1;
+
+  private void added(Add add) {
+    created = true;
+    add.getRanges().forEach(tickets::add);
+  }
+
+  private void sold(Sold sold) {
+    sold.ranges.forEach(tickets::remove);
+  }
+
+  // 在庫からの取り出しは済ませてから呼ぶ
+  private void holdPlaced(HoldPlaced placed) {
+    holds.put(placed.id, placed);
+    nextHoldId = Math.max(nextHoldId, placed.id + 1);
+    holdTimers.schedule(placed.id, placed.expiresAt);
+    if (!timers().isTimerActive(ExpireHolds.class))
+      timers().startPeriodicTimer(ExpireHolds.class, new ExpireHolds(), holdTick);
+  }
+
+  private void holdsReleased(HoldsReleased released) {
+    for (Long id : released.ids) {
+      HoldPlaced held = holds.remove(id);
+      if (held != null)
+        held.ranges.forEach(tickets::add);
+    }
+  }
+
+  private void saveSnapshotIfNeeded() {
+    if (lastSequenceNr() % snapshotInterval == 0)
+      saveSnapshot(new Snapshot(tickets.ranges(), new ArrayList<>(holds.values()), nextHoldId));
+  }
+
+  // シャーディングでは親がBoxOfficeではないので、残りチケット数は分散データで全ノードに複製する
+  private void publishAvailability() {
+    if (!sharded) {
+      getContext().getParent().tell(
+          new BoxOffice.TicketsAvailable(event, tickets.size(), System.currentTimeMillis()), getSelf());
+    } else if (created && tickets.size() != published) {
+      int available = tickets.size();
+      published = available;
+      Cluster cluster = Cluster.get(getContext().getSystem());
+      updateAvailability(map -> map.put(cluster, event, available));
+    }
+  }
+
+  private void updateAvailability(Function<LWWMap<String, Integer>, LWWMap<String, Integer>> modify) {
+    DistributedData.get(getContext().getSystem()).replicator().tell(new Replicator.Update<>(
+        SellerSharding.AVAILABILITY_KEY, LWWMap.create(), Replicator.writeLocal(), modify), getSelf());
+  }
+
+  // 停止の依頼は、シャーディングではシャードに、それ以外はBoxOfficeに送る
+  private void requestStop() {
+    if (sharded)
+      getContext().getParent().tell(new ShardRegion.Passivate(new Stop()), getSelf());
+    else
+      getContext().getParent().tell(new BoxOffice.Passivate(event, tickets.size()), getSelf());
+  }
+
+  // 読み取り用のビューは通知の間隔によらず変更の度に書き換える
+  private void changed() {
+    view.update(event, tickets.size());
+    if (availabilityInterval.isZero())
+      publishAvailability();
+  }
+
+  private void hold(Hold hold) {
+    // 先に受け取ったBuyから在庫を割り当てる
+    flushBuys();
+    List<TicketRange> entries = tickets.take(hold.getTickets());
+    if (entries.isEmpty()) {
+      completed(1);
+      getContext().sender().tell(soldOut, getSelf());
+      return;
+    }
+
+    // 在庫からは取り出し済みなので、保存後は仮押さえとして登録するだけ
+    ActorRef sender = getContext().sender();
+    persist(new HoldPlaced(nextHoldId++, entries, System.currentTimeMillis() + holdTtl.toMillis()), placed -> {
+      holdPlaced(placed);
+      saveSnapshotIfNeeded();
+      changed();
+      completed(1);
+      sender.tell(new HoldCreated(placed.id, new Tickets(event, placed.ranges), placed.expiresAt), getSelf());
+    });
+  }
+
+  // 期限切れの仮押さえをまとめて在庫に戻す
+  private void expireHolds() {
+    List<Long> expired = new ArrayList<>();
+    holdTimers.expire(System.currentTimeMillis(), id -> {
+      if (holds.containsKey(id))
+        expired.add(id);
+    });
+    if (holdTimers.size() == 0)
+      timers().cancel(ExpireHolds.class);
+    if (expired.isEmpty())
+      return;
+
+    persist(new HoldsReleased(expired), released -> {
+      holdsReleased(released);
+      saveSnapshotIfNeeded();
+      changed();
+      log.info("{} released {} expired holds", persistenceId, released.ids.size());
+    });
+  }
+
+  // 処理中のBuyを数えているBoxOfficeに、返信し終えた数を通知する
+  private void completed(int buys) {
+    if (trackInFlight && buys > 0)
+      getContext().getParent().tell(new BoxOffice.BuysCompleted(event, buys), getSelf());
+  }
+
+  private void sell(Buy buy) {
+    List<TicketRange> entries = tickets.take(buy.getTickets());
+    if (entries.isEmpty()) {
+      completed(1);
+      getContext().sender().tell(soldOut, getSelf());
+    } else {
+      // 在庫からは取り出し済みなので、保存後はスナップショットと通知だけを行う
+      persist(new Sold(entries), sold -> {
+        saveSnapshotIfNeeded();
+        changed();
+        Tickets bought = new Tickets(event, sold.ranges);
+        soldCounter.add(buy.getTickets());
+        completed(1);
+        getContext().sender().tell(bought, getSelf());
+        // 監査用のジャーナル（SalesAudit）に通知する
+        getContext().getSystem().eventStream().publish(bought);
+      });
+    }
+  }
+
+  // Buyを溜めておき、メールボックスの末尾に送ったFlushBuysに達した時点でまとめて処理する
+  // 保存中に届いたBuyはスタッシュされ、保存後にまとめて戻ってくるので、負荷が高いほど大きなバッチになる
+  private void enqueue(Buy buy) {
+    pendingBuys.add(buy);
+    pendingBuyers.add(getContext().sender());
+    if (pendingBuys.size() >= buyBatchSize) {
+      flushBuys();
+    } else if (!flushScheduled) {
+      flushScheduled = true;
+      getSelf().tell(FlushBuys.INSTANCE, getSelf());
+    }
+  }
+
+  // 溜まったBuyに在庫から順に割り当て、販売分を1つのSoldとして保存してから一斉に返信する
+  private void flushBuys() {
+    if (pendingBuys.isEmpty())
+      return;
+
+    if (log.isDebugEnabled())
+      log.debug("{} selling {} batched requests", persistenceId, pendingBuys.size());
+
+    // 返信に使うリストは保存の完了まで持ち越すので毎回作る。溜めていたリストは使い回す
+    List<TicketRange> soldRanges = new ArrayList<>(pendingBuys.size());
+    List<ActorRef> soldBuyers = new ArrayList<>(pendingBuys.size());
+    List<Tickets> soldTickets = new ArrayList<>(pendingBuys.size());
+    List<ActorRef> soldOutBuyers = Collections.emptyList();
+    int soldTotal = 0;
+    for (int i = 0; i < pendingBuys.size(); i++) {
+      List<TicketRange> entries = tickets.take(pendingBuys.get(i).getTickets());
+      if (entries.isEmpty()) {
+        if (soldOutBuyers.isEmpty())
+          soldOutBuyers = new ArrayList<>();
+        soldOutBuyers.add(pendingBuyers.get(i));
+      } else {
+        for (int j = 0; j < entries.size(); j++)
+          soldRanges.add(entries.get(j));
+        soldBuyers.add(pendingBuyers.get(i));
+        soldTickets.add(new Tickets(event, entries));
+        soldTotal += pendingBuys.get(i).getTickets();
+      }
+    }
+
+    // 返信より先に通知して、返信を受けたクライアントの次のBuyが処理中として数えられないようにする
+    completed(soldOutBuyers.size());
+    for (ActorRef buyer : soldOutBuyers)
+      buyer.tell(soldOut, getSelf());
+    pendingBuys.clear();
+    pendingBuyers.clear();
+    if (soldRanges.isEmpty())
+      return;
+
+    int soldCount = soldTotal;
+    persist(new Sold(soldRanges), sold -> {
+      saveSnapshotIfNeeded();
+      changed();
+      soldCounter.add(soldCount);
+      completed(soldBuyers.size());
+      for (int i = 0; i < soldBuyers.size(); i++)
+        soldBuyers.get(i).tell(soldTickets.get(i), getSelf());
+      // 監査用のジャーナル（SalesAudit）にはバッチ全体をまとめて通知する
+      getContext().getSystem().eventStream().publish(new Tickets(event, sold.ranges));
+    });
+  }
+
+  @Override
+  public void preStart() throws Exception {
+    super.preStart();
+    metrics.residentSellers().increment();
+    if (!passivateAfter.isZero())
+      getContext().setReceiveTimeout(passivateAfter);
+  }
+
+  // 再起動で失われたBuyには返信できないので、処理中の数を数えているBoxOfficeに通知する
+  @Override
+  public void postRestart(Throwable reason) throws Exception {
+    super.postRestart(reason);
+    if (trackInFlight)
+      getContext().getParent().tell(new BoxOffice.SellerRestarted(event), getSelf());
+  }
+
+  @Override
+  public void postStop() {
+    metrics.residentSellers().decrement();
+    super.postStop();
+  }
+
+  // 一定時間メッセージが届かなければ、状態をスナップショットに保存してからBoxOfficeに停止を依頼する
+  // 仮押さえがある間は期限切れを処理するために停止しない
+  private void passivate() {
+    if (passivating || !holds.isEmpty() || !pendingBuys.isEmpty())
+      return;
+
+    passivating = true;
+    getContext().cancelReceiveTimeout();
+    // 存在しないイベント宛てのメッセージで起動したエンティティは、保存するものがないのですぐに止める
+    if (!created) {
+      requestStop();
+      return;
+    }
+    saveSnapshot(new Snapshot(tickets.ranges(), new ArrayList<>(holds.values()), nextHoldId));
+  }
+
+  // メッセージ1件の処理時間を記録する
+  @Override
+  public void aroundReceive(PartialFunction<Object, BoxedUnit> receive, Object msg) {
+    long started = System.nanoTime();
+    super.aroundReceive(receive, msg);
+    processing.record(System.nanoTime() - started);
+  }
+
+  // ジャーナルからの復元
+  @Override
+  public Receive createReceiveRecover() {
+    return receiveBuilder()
+        .match(SnapshotOffer.class, offer -> {
+          Snapshot snapshot = (Snapshot) offer.snapshot();
+          created = true;
+          snapshot.ranges.forEach(tickets::add);
+          snapshot.holds.forEach(this::holdPlaced);
+          nextHoldId = snapshot.nextHoldId;
+        })
+        .match(Add.class, add -> {
+          replayed++;
+          added(add);
+        })
+        .match(Sold.class, sold -> {
+          replayed++;
+          sold(sold);
+        })
+        .match(HoldPlaced.class, placed -> {
+          replayed++;
+          placed.ranges.forEach(tickets::remove);
+          holdPlaced(placed);
+        })
+        .match(HoldConfirmed.class, confirmed -> {
+          replayed++;
+          holds.remove(confirmed.id);
+        })
+        .match(HoldsReleased.class, released -> {
+          replayed++;
+          holdsReleased(released);
+        })
+        .match(RecoveryCompleted.class, completed -> {
+          // 新しいTicketSellerはAddが届くまで在庫が空なので、BoxOfficeが書いたビューを0で上書きしない
+          if (created && lastSequenceNr() > 0)
+            view.update(event, tickets.size());
+          if (lastSequenceNr() > 0) {
+            metrics.sellerRecovery().record(System.nanoTime() - recoveryStarted);
+            log.info("{} recovered in {} ms ({} events replayed, {} tickets left)", persistenceId(),
+                (System.nanoTime() - recoveryStarted) / 1000000, replayed, tickets.size());
+            publishAvailability();
+          }
+          // 存在しないイベント宛てのメッセージで起動したエンティティは、応答したらすぐに止める
+          // （受信タイムアウトを待つと、未知の名前へのリクエストの数だけエンティティが残る）
+          if (sharded && !created)
+            passivate();
+        })
+        .build();
+  }
 
   // receiveメソッドの定義
   @Override
@@ -103,30 +802,177 @@ public class TicketSeller extends AbstractActor {
         .match(Add.class, add -> {
           log.debug(msg, add);
 
-          tickets.addAll(add.getTickets());
+          persist(add, added -> {
+            added(added);
+            saveSnapshotIfNeeded();
+            changed();
+          });
+        })
+        .match(Create.class, create -> {
+          log.debug(msg, create);
+
+          if (created) {
+            sender().tell(new BoxOffice.EventExists(), self());
+            return;
+          }
+
+          ActorRef sender = sender();
+          persist(new Add(Collections.singletonList(new TicketRange(1, create.tickets))), added -> {
+            added(added);
+            saveSnapshotIfNeeded();
+            view.update(event, tickets.size());
+            publishAvailability();
+            sender.tell(new BoxOffice.EventCreated(new BoxOffice.Event(event, create.tickets)), self());
+          });
         })
+        .match(Buy.class, buy -> buyBatchSize > 1, this::enqueue)
         .match(Buy.class, buy -> {
           log.debug(msg, buy);
 
-          if (tickets.size() >= buy.tickets) {
-            List<Ticket> entries = tickets.subList(0, buy.getTickets());
-            getContext().sender().tell(new Tickets(event, new ArrayList<>(entries)), getSelf());
-            entries.clear();
-          } else {
-            getContext().sender().tell(new Tickets(event), getSelf());
+          sell(buy);
+        })
+        .match(FlushBuys.class, flush -> {
+          flushScheduled = false;
+          flushBuys();
+        })
+        .match(Return.class, returned -> !created, returned -> log.debug("{} ignored return to unknown event", persistenceId))
+        .match(Return.class, returned -> {
+          log.debug(msg, returned);
+
+          persist(new Add(returned.getRanges()), added -> {
+            added(added);
+            saveSnapshotIfNeeded();
+            changed();
+            getContext().getSystem().eventStream().publish(new Returned(event, added.getRanges()));
+          });
+        })
+        .match(Hold.class, hold -> {
+          log.debug(msg, hold);
+
+          hold(hold);
+        })
+        .match(Confirm.class, confirm -> {
+          log.debug(msg, confirm);
+
+          HoldPlaced held = holds.get(confirm.id);
+          if (held == null) {
+            sender().tell(Optional.empty(), self());
+            return;
+          }
+
+          ActorRef sender = sender();
+          persist(new HoldConfirmed(confirm.id), confirmed -> {
+            holds.remove(confirmed.id);
+            saveSnapshotIfNeeded();
+            Tickets bought = new Tickets(event, held.ranges);
+            soldCounter.add(bought.size());
+            sender.tell(Optional.of(bought), self());
+            getContext().getSystem().eventStream().publish(bought);
+          });
+        })
+        .match(Release.class, release -> {
+          log.debug(msg, release);
+
+          HoldPlaced held = holds.get(release.id);
+          if (held == null) {
+            sender().tell(Optional.empty(), self());
+            return;
           }
+
+          ActorRef sender = sender();
+          persist(new HoldsReleased(Collections.singletonList(release.id)), released -> {
+            holdsReleased(released);
+            saveSnapshotIfNeeded();
+            changed();
+            sender.tell(Optional.of(new Tickets(event, held.ranges)), self());
+          });
         })
+        .match(ExpireHolds.class, expire -> expireHolds())
+        .match(GetEvent.class, getEvent -> !created, getEvent -> sender().tell(Optional.empty(), self()))
         .match(GetEvent.class, getEvent -> {
           log.debug(msg, getEvent);
 
-          sender().tell(Optional.of(new BoxOffice.Event(event, tickets.size())), self());
+          // 先に受け取ったBuyの保存と返信が終わってから枚数を返す
+          flushBuys();
+          ActorRef sender = sender();
+          deferAsync(getEvent, deferred ->
+              sender.tell(Optional.of(new BoxOffice.Event(event, tickets.size())), self()));
+        })
+        .match(PublishAvailability.class, publish -> publishAvailability())
+        .match(Replicator.UpdateResponse.class, response -> {
+          if (!(response instanceof Replicator.UpdateSuccess))
+            log.warning("{} failed to publish availability: {}", persistenceId, response);
+        })
+        .match(ReceiveTimeout.class, timeout -> passivate())
+        .match(BoxOffice.PassivateRefused.class, refused -> {
+          // 停止できなかったので、また一定時間後に停止を依頼できるようにする
+          passivating = false;
+          if (!passivateAfter.isZero())
+            getContext().setReceiveTimeout(passivateAfter);
+        })
+        .match(Stop.class, stop -> {
+          // 溜まっているBuyを処理し、保存と返信が終わってから停止する
+          flushBuys();
+          deferAsync(stop, deferred -> getContext().stop(getSelf()));
+        })
+        .match(SaveSnapshotSuccess.class, success -> {
+          deleteSnapshots(SnapshotSelectionCriteria.create(success.metadata().sequenceNr() - 1, Long.MAX_VALUE));
+          if (passivating)
+            requestStop();
+        })
+        .match(SaveSnapshotFailure.class, failure -> {
+          log.warning("{} failed to save snapshot: {}", persistenceId(), failure.cause());
+          // スナップショットがなくてもジャーナルから復元できるので、そのまま停止する
+          if (passivating)
+            requestStop();
         })
+        .match(Cancel.class, getCancel -> !created, getCancel -> sender().tell(Optional.empty(), self()))
         .match(Cancel.class, getCancel -> {
           log.debug(msg, getCancel);
 
-          sender().tell(Optional.of(new BoxOffice.Event(event, tickets.size())), self());
-          self().tell(PoisonPill.getInstance(), self());
+          // 先に受け取ったBuyの保存が終わってからビューと分散データから取り除く
+          // （Soldの保存後のchanged()で、取り除いたイベントがビューに戻らないようにする）
+          flushBuys();
+          ActorRef sender = sender();
+          deferAsync(getCancel, deferred -> {
+            Metrics.get(getContext().getSystem()).eventCancelled(event);
+            view.remove(event);
+            if (sharded)
+              updateAvailability(map -> map.remove(Cluster.get(getContext().getSystem()), event));
+            sender.tell(Optional.of(new BoxOffice.Event(event, tickets.size())), self());
+            // キャンセルされたイベントのジャーナルとスナップショットを削除してから停止する
+            // （保存待ちのSoldより先に削除すると、削除範囲から漏れたSoldがジャーナルに残る）
+            deleteMessages(lastSequenceNr());
+          });
+          getContext().become(cancelling());
         })
         .build();
   }
+
+  private Receive cancelling() {
+    return receiveBuilder()
+        .match(DeleteMessagesSuccess.class, deleted -> deleteSnapshots(SnapshotSelectionCriteria.latest()))
+        .match(DeleteMessagesFailure.class, failed -> deleteSnapshots(SnapshotSelectionCriteria.latest()))
+        .match(DeleteSnapshotsSuccess.class, deleted -> cancelled())
+        .match(DeleteSnapshotsFailure.class, failed -> cancelled())
+        .match(Object.class, message -> sharded, message -> stash())
+        .build();
+  }
+
+  // シャーディングでは同じイベント名で作り直せるように、空の状態に戻してからシャードに停止を依頼する
+  // 停止するまでに届いたメッセージには、存在しないイベントとして応答する
+  private void cancelled() {
+    if (!sharded) {
+      self().tell(PoisonPill.getInstance(), self());
+      return;
+    }
+
+    tickets.ranges().forEach(tickets::remove);
+    holds.clear();
+    created = false;
+    published = -1;
+    getContext().become(createReceive());
+    unstashAll();
+    passivate();
+  }
 }
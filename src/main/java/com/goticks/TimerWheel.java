@@ -0,0 +1,85 @@
+package com.goticks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+// ハッシュ化タイマーホイール
+// 期限をtick単位に丸めてwheelSize個のスロットに振り分け、expire()では経過したスロットだけを調べる
+// 登録・取り出しはタイマーの数によらずほぼ定数時間で、タイマーごとにスケジューラーのタスクを作らない
+// 取り消しは持たない（期限切れで渡されたキーが既に不要なら呼び出し側で無視する）。スレッドセーフではない
+class TimerWheel<K> {
+  private static class Timer<K> {
+    private final K key;
+    private final long deadlineTick;
+
+    Timer(K key, long deadlineTick) {
+      this.key = key;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+
+  private final long tickMillis;
+  // スロットとそのリストは最初に使う時に作る（仮押さえのないTicketSellerにはスロットを持たせない）
+  private List<List<Timer<K>>> slots = null;
+  private final int slotCount;
+  private final int mask;
+  // 次に調べるtick
+  private long currentTick;
+  private int size = 0;
+
+  // wheelSizeは2のべき乗に切り上げる
+  TimerWheel(long tickMillis, int wheelSize, long nowMillis) {
+    this.tickMillis = tickMillis;
+    this.slotCount = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+    this.mask = slotCount - 1;
+    this.currentTick = nowMillis / tickMillis;
+  }
+
+  // 期限（エポックミリ秒）の後の最初のtickで取り出す
+  void schedule(K key, long deadlineMillis) {
+    long tick = Math.max(currentTick, (deadlineMillis + tickMillis - 1) / tickMillis);
+    int index = (int) (tick & mask);
+    if (slots == null)
+      slots = new ArrayList<>(Collections.nCopies(slotCount, null));
+    List<Timer<K>> slot = slots.get(index);
+    if (slot == null) {
+      slot = new ArrayList<>();
+      slots.set(index, slot);
+    }
+    slot.add(new Timer<>(key, tick));
+    size++;
+  }
+
+  // nowMillisまでに期限を迎えたキーをexpiredに渡す
+  void expire(long nowMillis, Consumer<K> expired) {
+    long nowTick = nowMillis / tickMillis;
+    // スロットを1周以上進める場合も、各スロットは1度だけ調べれば足りる（タイマーがなければ調べない）
+    long last = size == 0 ? currentTick - 1 : Math.min(nowTick, currentTick + mask);
+    for (; currentTick <= last; currentTick++) {
+      List<Timer<K>> slot = slots.get((int) (currentTick & mask));
+      if (slot != null)
+        expireSlot(slot, nowTick, expired);
+    }
+    currentTick = Math.max(currentTick, nowTick + 1);
+  }
+
+  private void expireSlot(List<Timer<K>> slot, long nowTick, Consumer<K> expired) {
+    int kept = 0;
+    for (int i = 0; i < slot.size(); i++) {
+      Timer<K> timer = slot.get(i);
+      if (timer.deadlineTick <= nowTick) {
+        expired.accept(timer.key);
+        size--;
+      } else {
+        slot.set(kept++, timer);
+      }
+    }
+    slot.subList(kept, slot.size()).clear();
+  }
+
+  int size() {
+    return size;
+  }
+}
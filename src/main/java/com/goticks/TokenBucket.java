@@ -0,0 +1,40 @@
+package com.goticks;
+
+// 1秒あたりrate個のトークンが補充され、最大burst個まで溜まるトークンバケット
+// 時刻（System.nanoTime()の値）は呼び出し側が渡す。アクターの中で使うのでスレッドセーフではない
+class TokenBucket {
+  private final double tokensPerNano;
+  private final double capacity;
+  private double tokens;
+  private long updated;
+
+  TokenBucket(double rate, int burst, long now) {
+    this.tokensPerNano = rate / 1e9;
+    this.capacity = Math.max(1, burst);
+    this.tokens = capacity;
+    this.updated = now;
+  }
+
+  // トークンがあれば1つ取り出す
+  boolean tryAcquire(long now) {
+    refill(now);
+    if (tokens < 1)
+      return false;
+
+    tokens -= 1;
+    return true;
+  }
+
+  // 次のトークンが補充されるまでの時間（ナノ秒）
+  long nanosUntilAvailable(long now) {
+    refill(now);
+    return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+  }
+
+  private void refill(long now) {
+    if (now > updated) {
+      tokens = Math.min(capacity, tokens + (now - updated) * tokensPerNano);
+      updated = now;
+    }
+  }
+}
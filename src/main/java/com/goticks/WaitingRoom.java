@@ -0,0 +1,151 @@
+package com.goticks;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// フラッシュセール用の仮想の待合室
+// 並んだ順に番号を振り、admit()が呼ばれる度に先頭からbatchSize番ずつ購入を許可する（FIFO）
+// 順番の確認はトークンの番号と許可済みの番号の差を返すだけなので、アクターへの問い合わせは行わない
+class WaitingRoom {
+  private final int batchSize;
+  private final int expireAfter;
+
+  // 待合室の状態
+  // 並ぶ・順番を確認する・入場するのは任意のスレッドから、admit()は定期的に1つのスレッドから呼ぶ
+  private static class Queue {
+    // 最後に発行した番号と、購入を許可した番号
+    private final AtomicLong issued = new AtomicLong();
+    private volatile long admitted = 0;
+    // トークン -> 番号（購入したトークンと失効したトークンは消す）
+    private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<>();
+    // 購入中のトークン -> 番号（購入が終わるまで同じトークンでは入れない）
+    private final ConcurrentMap<String, Long> entered = new ConcurrentHashMap<>();
+    // admit()の度の許可済みの番号と、失効させた番号
+    private final Deque<Long> history = new ArrayDeque<>();
+    private long expired = 0;
+
+    synchronized void admit(int batchSize, int expireAfter) {
+      admitted = Math.min(admitted + batchSize, issued.get());
+      history.addLast(admitted);
+      if (history.size() > expireAfter) {
+        long expiring = history.removeFirst();
+        if (expiring > expired) {
+          expired = expiring;
+          tokens.values().removeIf(number -> number <= expiring);
+        }
+      }
+    }
+
+    // 購入できなかったトークンを戻す（その間に失効していれば戻さない）
+    synchronized void restore(String token, long number) {
+      if (number > expired)
+        tokens.put(token, number);
+    }
+
+    Position position(String token, long number) {
+      return new Position(token, Math.max(0, number - admitted), number <= admitted);
+    }
+  }
+
+  // 待合室での順番（positionが0になったら購入できる）
+  public static class Position {
+    private final String token;
+    private final long position;
+    private final boolean admitted;
+
+    Position(String token, long position, boolean admitted) {
+      this.token = token;
+      this.position = position;
+      this.admitted = admitted;
+    }
+
+    public String getToken() {
+      return token;
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public boolean isAdmitted() {
+      return admitted;
+    }
+  }
+
+  // イベント名 -> 待合室
+  private final ConcurrentMap<String, Queue> queues = new ConcurrentHashMap<>();
+
+  // 許可されてからexpireAfter回admit()が呼ばれるまでに購入しなかったトークンは失効する
+  WaitingRoom(int batchSize, int expireAfter) {
+    this.batchSize = batchSize;
+    this.expireAfter = Math.max(1, expireAfter);
+  }
+
+  boolean open(String event) {
+    return queues.putIfAbsent(event, new Queue()) == null;
+  }
+
+  boolean close(String event) {
+    return queues.remove(event) != null;
+  }
+
+  boolean isOpen(String event) {
+    return queues.containsKey(event);
+  }
+
+  // 列の最後に並ぶ（待合室が開いていなければempty）
+  Optional<Position> join(String event) {
+    Queue queue = queues.get(event);
+    if (queue == null)
+      return Optional.empty();
+
+    String token = UUID.randomUUID().toString();
+    long number = queue.issued.incrementAndGet();
+    queue.tokens.put(token, number);
+    return Optional.of(queue.position(token, number));
+  }
+
+  // トークンの順番（知らないトークンや失効したトークンはempty）
+  Optional<Position> position(String event, String token) {
+    Queue queue = queues.get(event);
+    if (queue == null)
+      return Optional.empty();
+
+    Long number = queue.tokens.get(token);
+    if (number == null)
+      number = queue.entered.get(token);
+    return number == null ? Optional.empty() : Optional.of(queue.position(token, number));
+  }
+
+  // 購入を許可されたトークンで入り、購入が終わるまで使用中にする（許可されていなければfalse）
+  // 購入が終わったらleave()を呼ぶ
+  boolean enter(String event, String token) {
+    Queue queue = queues.get(event);
+    if (queue == null)
+      return false;
+
+    Long number = queue.tokens.get(token);
+    if (number == null || number > queue.admitted || !queue.tokens.remove(token, number))
+      return false;
+    queue.entered.put(token, number);
+    return true;
+  }
+
+  // 購入できた（または売り切れだった）場合はトークンを使い切り、それ以外（流量制限やタイムアウト）は失効するまで使えるように戻す
+  void leave(String event, String token, boolean used) {
+    Queue queue = queues.get(event);
+    Long number = queue == null ? null : queue.entered.remove(token);
+    if (number != null && !used)
+      queue.restore(token, number);
+  }
+
+  // 各待合室の先頭からbatchSize番まで購入を許可する
+  void admit() {
+    queues.values().forEach(queue -> queue.admit(batchSize, expireAfter));
+  }
+}
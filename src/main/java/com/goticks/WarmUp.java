@@ -0,0 +1,127 @@
+package com.goticks;
+
+import akka.Done;
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.MediaRanges;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.headers.Accept;
+import akka.http.javadsl.server.Route;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
+
+// ポートを開く前に、RestApiのルートに同じプロセスの中から合成のリクエストを流してJITコンパイルを進めておく
+// （最初の購入者がインタプリタで動くAkka HTTP / Jackson / アクターのコードを通らないようにする）
+// 専用のイベントを作って購入・取得・一覧を繰り返し、最後にキャンセルする
+// isolated()は本番とは別のアクターシステム（メモリ上のジャーナル、販売ジャーナルなし、クラスターなし）で流すので、
+// 本番のジャーナル・スナップショット・販売ジャーナル・メトリクスには何も残らない
+class WarmUp {
+  // ウォームアップ用のアクターシステムの設定（残りは本番の設定を使う）
+  private static Config isolatedConfig(Path snapshots) {
+    return ConfigFactory.parseString(
+        "akka.actor.provider = local\n" +
+        "akka.persistence.journal.plugin = \"akka.persistence.journal.inmem\"\n" +
+        "akka.persistence.snapshot-store.local.dir = \"" + snapshots.toString().replace("\\", "/") + "\"\n" +
+        "goticks.cluster.enabled = off\n" +
+        "goticks.sales-journal.enabled = off\n" +
+        "goticks.warm-up.enabled = off");
+  }
+
+  // 別のアクターシステムでRestApiを起動してウォームアップし、終わったら止める
+  static CompletionStage<Done> isolated(Config config, Long timeout) {
+    Path snapshots;
+    try {
+      snapshots = Files.createTempDirectory("goticks-warm-up");
+    } catch (IOException e) {
+      CompletableFuture<Done> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+
+    ActorSystem system = ActorSystem.create("go-ticks-warm-up", isolatedConfig(snapshots).withFallback(config));
+    Materializer materializer = RestApi.materializer(system);
+    CompletionStage<Done> warmedUp;
+    try {
+      warmedUp = new WarmUp(system, config.getConfig("goticks.warm-up"))
+          .run(new RestApi(system, timeout).createRoute(), system, materializer);
+    } catch (RuntimeException e) {
+      CompletableFuture<Done> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      warmedUp = failed;
+    }
+    return warmedUp.whenComplete((done, failure) -> system.terminate())
+        .thenCombine(system.getWhenTerminated(), (done, terminated) -> {
+          deleteRecursively(snapshots);
+          return done;
+        });
+  }
+
+  private static void deleteRecursively(Path dir) {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    } catch (IOException e) {
+      // 一時ディレクトリなので消せなくても続ける
+    }
+  }
+
+  private final int requests;
+  private final LoggingAdapter log;
+
+  WarmUp(ActorSystem system, Config config) {
+    this.requests = config.getInt("requests");
+    this.log = Logging.getLogger(system, this);
+  }
+
+  CompletionStage<Done> run(Route route, ActorSystem system, Materializer materializer) {
+    String event = "warm-up-" + UUID.randomUUID();
+    long started = System.nanoTime();
+    log.info("Warm-up: sending {} requests through the route", requests);
+
+    Source<HttpRequest, ?> traffic = Source.single(
+        HttpRequest.POST("/events/" + event).withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\":" + requests + "}"))
+        .concat(Source.range(1, requests).map(i -> request(event, i)))
+        .concat(Source.single(HttpRequest.DELETE("/events/" + event)));
+
+    return traffic
+        .via(route.flow(system, materializer))
+        .mapAsync(1, response -> response.discardEntityBytes(materializer).completionStage().thenApply(done -> response))
+        .runWith(Sink.fold(0, (failed, response) -> response.status().isSuccess() ? failed : failed + 1), materializer)
+        .thenApply(failed -> {
+          log.info("Warm-up: {} requests in {} ms ({} failed)", requests + 2,
+              (System.nanoTime() - started) / 1000000, failed);
+          return Done.getInstance();
+        });
+  }
+
+  // 購入を中心に、イベント取得・一覧（JSON / CBOR）を混ぜる
+  private static HttpRequest request(String event, int i) {
+    switch (i % 4) {
+      case 0:
+        return HttpRequest.GET("/events/" + event);
+      case 1:
+        return HttpRequest.GET("/events");
+      case 2:
+        return HttpRequest.POST("/events/" + event + "/tickets")
+            .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\":1}")
+            .addHeader(Accept.create(MediaRanges.create(JacksonCodecs.CBOR_MEDIA_TYPE)));
+      default:
+        return HttpRequest.POST("/events/" + event + "/tickets")
+            .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\":1}");
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package com.goticks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+
+public class AvailabilityViewTest {
+  @Test
+  public void testVersionChangesWithTickets() {
+    AvailabilityView view = new AvailabilityView();
+    view.update("RHCP", 10);
+    long created = view.getEntry("RHCP").getAsLong();
+    assertEquals(10, AvailabilityView.tickets(created));
+
+    // 残りチケット数が変わらなければバージョンも変えない
+    view.update("RHCP", 10);
+    assertEquals(created, view.getEntry("RHCP").getAsLong());
+
+    view.update("RHCP", 8);
+    long sold = view.getEntry("RHCP").getAsLong();
+    assertEquals(8, AvailabilityView.tickets(sold));
+    assertEquals(AvailabilityView.version(created) + 1, AvailabilityView.version(sold));
+
+    view.remove("RHCP");
+    assertFalse(view.get("RHCP").isPresent());
+  }
+
+  @Test
+  public void testCatalogTag() {
+    AvailabilityView view = new AvailabilityView();
+    String tag = view.catalogTag();
+    assertEquals(tag, view.catalogTag());
+    view.catalogChanged();
+    assertNotEquals(tag, view.catalogTag());
+  }
+}
@@ -0,0 +1,112 @@
+package com.goticks;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static akka.pattern.PatternsCS.ask;
+
+// BoxOfficeを経由するaskの往復、イベントの作成、全シャードからのイベント一覧の取得
+// 実行: mvn -Pbench test-compile exec:exec@bench -Dbench=BoxOfficeBenchmark
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoxOfficeBenchmark {
+  private static final long TIMEOUT = 5000L;
+
+  static Config config() {
+    return ConfigFactory.parseString(
+        "akka.loglevel = INFO\n" +
+        "goticks.persistence.snapshot-interval = 1000000")
+        .withFallback(RestApiTest.inMemoryJournal());
+  }
+
+  // 1つのイベントを持つBoxOffice
+  @State(Scope.Benchmark)
+  public static class Routing {
+    ActorSystem system;
+    ActorRef boxOffice;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      system = ActorSystem.create("box-office-bench", config());
+      boxOffice = system.actorOf(BoxOffice.props(0, TIMEOUT), "boxOffice-0");
+      ask(boxOffice, new BoxOffice.CreateEvent("RHCP", 1000), TIMEOUT).toCompletableFuture().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      TestKit.shutdownActorSystem(system);
+    }
+  }
+
+  // 作成したイベントが溜まり続けないように、イテレーションごとに作り直す
+  @State(Scope.Benchmark)
+  public static class Creating {
+    @Param({"1000", "1000000"})
+    public int tickets;
+
+    ActorSystem system;
+    ActorRef boxOffice;
+    int created = 0;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+      system = ActorSystem.create("box-office-bench", config());
+      boxOffice = system.actorOf(BoxOffice.props(0, TIMEOUT), "boxOffice-0");
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+      TestKit.shutdownActorSystem(system);
+    }
+  }
+
+  // events件のイベントを全シャードに作成したRestApi
+  @State(Scope.Benchmark)
+  public static class Catalog {
+    @Param({"10", "1000", "10000"})
+    public int events;
+
+    ActorSystem system;
+    RestApi api;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      system = ActorSystem.create("box-office-bench", config());
+      api = new RestApi(system, TIMEOUT);
+      for (int i = 0; i < events; i++)
+        api.createEvent("event-" + i, 100).toCompletableFuture().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      TestKit.shutdownActorSystem(system);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  public Object askGetEvent(Routing state) {
+    return ask(state.boxOffice, new BoxOffice.GetEvent("RHCP"), TIMEOUT).toCompletableFuture().join();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public Object createEvent(Creating state) {
+    return ask(state.boxOffice, new BoxOffice.CreateEvent("event-" + state.created++, state.tickets), TIMEOUT)
+        .toCompletableFuture().join();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public BoxOffice.Events getEvents(Catalog state) {
+    return state.api.getEvents().toCompletableFuture().join();
+  }
+}
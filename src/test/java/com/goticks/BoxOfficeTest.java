@@ -0,0 +1,173 @@
+package com.goticks;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Status;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class BoxOfficeTest {
+  private ActorSystem system;
+
+  @Before
+  public void initClass() {
+    // イベントごとに返信待ちのBuyは1件まで
+    system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.box-office.admission.max-in-flight = 1").withFallback(RestApiTest.inMemoryJournal()));
+  }
+
+  @After
+  public void tearDown() {
+    TestKit.shutdownActorSystem(system);
+  }
+
+  @Test
+  public void testInFlightLimit() {
+    TestKit probe = new TestKit(system);
+    ActorRef boxOffice = system.actorOf(BoxOffice.props(0, 2000L));
+    boxOffice.tell(new BoxOffice.CreateEvent("RHCP", 10), probe.getRef());
+    probe.expectMsgClass(BoxOffice.EventCreated.class);
+
+    // 別のイベントの保存中に送り、2件のGetTicketsが1件目の返信より先にBoxOfficeに届くようにする
+    boxOffice.tell(new BoxOffice.CreateEvent("Beck", 10), probe.getRef());
+    boxOffice.tell(new BoxOffice.GetTickets("RHCP", 1), probe.getRef());
+    boxOffice.tell(new BoxOffice.GetTickets("RHCP", 1), probe.getRef());
+    probe.expectMsgClass(BoxOffice.EventCreated.class);
+
+    // 2件目はTicketSellerに渡さずにすぐに断る（返信の順序はTicketSellerの処理次第）
+    List<Object> replies = probe.receiveN(2);
+    Status.Failure rejected = replies.stream()
+        .filter(Status.Failure.class::isInstance).map(Status.Failure.class::cast).findFirst().get();
+    assertEquals(BoxOffice.AdmissionRejected.IN_FLIGHT_LIMITED,
+        ((BoxOffice.AdmissionRejected) rejected.cause()).getReason());
+    assertEquals(1, replies.stream()
+        .filter(TicketSeller.Tickets.class::isInstance).map(TicketSeller.Tickets.class::cast).findFirst().get().size());
+
+    // 返信が済めば次のBuyを受け付ける
+    boxOffice.tell(new BoxOffice.GetTickets("RHCP", 1), probe.getRef());
+    assertEquals(1, probe.expectMsgClass(TicketSeller.Tickets.class).size());
+  }
+
+  @Test
+  public void testSoldOutAnsweredByBoxOffice() {
+    TestKit probe = new TestKit(system);
+    ActorRef boxOffice = system.actorOf(BoxOffice.props(0, 2000L));
+    boxOffice.tell(new BoxOffice.CreateEvent("RHCP", 2), probe.getRef());
+    probe.expectMsgClass(BoxOffice.EventCreated.class);
+    boxOffice.tell(new BoxOffice.GetTickets("RHCP", 2), probe.getRef());
+    assertEquals(2, probe.expectMsgClass(TicketSeller.Tickets.class).size());
+
+    // 売り切れのイベントは処理中のBuyの上限に関係なく、BoxOfficeがすぐに応答する
+    boxOffice.tell(new BoxOffice.GetTickets("RHCP", 1), probe.getRef());
+    boxOffice.tell(new BoxOffice.GetTickets("RHCP", 1), probe.getRef());
+    assertEquals(0, probe.expectMsgClass(TicketSeller.Tickets.class).size());
+    assertEquals(0, probe.expectMsgClass(TicketSeller.Tickets.class).size());
+  }
+
+  @Test
+  public void testPassivateIdleSeller() {
+    final ActorSystem passivating = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.ticket-seller.passivate-after = 200ms").withFallback(RestApiTest.inMemoryJournal()));
+    try {
+      Metrics metrics = Metrics.get(passivating);
+      TestKit probe = new TestKit(passivating);
+      ActorRef boxOffice = passivating.actorOf(BoxOffice.props(0, 2000L));
+      boxOffice.tell(new BoxOffice.CreateEvent("RHCP", 10), probe.getRef());
+      probe.expectMsgClass(BoxOffice.EventCreated.class);
+      boxOffice.tell(new BoxOffice.GetTickets("RHCP", 2), probe.getRef());
+      assertEquals(2, probe.expectMsgClass(TicketSeller.Tickets.class).size());
+
+      // しばらく使わなければ停止する
+      probe.awaitAssert(Duration.ofSeconds(3), () -> {
+        assertEquals(1, metrics.passivatedSellers().sum());
+        assertEquals(0, metrics.residentSellers().sum());
+        return null;
+      });
+
+      // イベント一覧は停止したままビューから返す
+      boxOffice.tell(new BoxOffice.GetEvents(), probe.getRef());
+      assertEquals(8, probe.expectMsgClass(BoxOffice.Events.class).getEvents().get(0).getTickets());
+
+      // 次の問い合わせで起動し直し、状態を復元する
+      boxOffice.tell(new BoxOffice.GetEvent("RHCP"), probe.getRef());
+      assertEquals(8, ((BoxOffice.Event) probe.expectMsgClass(Optional.class).get()).getTickets());
+      assertEquals(1, metrics.residentSellers().sum());
+      assertTrue(metrics.render().contains("goticks_ticket_seller_recovery_seconds_count 1\n"));
+
+      boxOffice.tell(new BoxOffice.GetTickets("RHCP", 1), probe.getRef());
+      assertEquals(3, probe.expectMsgClass(TicketSeller.Tickets.class).getEntries().get(0).getId());
+    } finally {
+      TestKit.shutdownActorSystem(passivating);
+    }
+  }
+
+  @Test
+  public void testRecoverWithoutStartingPassivatedSellers() {
+    final ActorSystem passivating = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.ticket-seller.passivate-after = 200ms").withFallback(RestApiTest.inMemoryJournal()));
+    try {
+      Metrics metrics = Metrics.get(passivating);
+      TestKit probe = new TestKit(passivating);
+      ActorRef boxOffice = passivating.actorOf(BoxOffice.props(0, 2000L));
+      boxOffice.tell(new BoxOffice.CreateEvent("RHCP", 10), probe.getRef());
+      probe.expectMsgClass(BoxOffice.EventCreated.class);
+      boxOffice.tell(new BoxOffice.GetTickets("RHCP", 2), probe.getRef());
+      assertEquals(2, probe.expectMsgClass(TicketSeller.Tickets.class).size());
+      probe.awaitAssert(Duration.ofSeconds(3), () -> {
+        assertEquals(0, metrics.residentSellers().sum());
+        return null;
+      });
+
+      // 停止中のTicketSellerは、BoxOfficeを復元しても起動しない
+      boxOffice = restart(probe, boxOffice, passivating);
+      boxOffice.tell(new BoxOffice.GetEvents(), probe.getRef());
+      assertEquals(8, probe.expectMsgClass(BoxOffice.Events.class).getEvents().get(0).getTickets());
+      assertEquals(0, metrics.residentSellers().sum());
+
+      // 最初に使う時に起動する
+      boxOffice.tell(new BoxOffice.GetTickets("RHCP", 1), probe.getRef());
+      assertEquals(3, probe.expectMsgClass(TicketSeller.Tickets.class).getEntries().get(0).getId());
+      assertEquals(1, metrics.residentSellers().sum());
+
+      // 起動し直した後に止まった場合は、残りチケット数が分からないので復元時に起動する
+      boxOffice = restart(probe, boxOffice, passivating);
+      boxOffice.tell(new BoxOffice.GetEvent("RHCP"), probe.getRef());
+      assertEquals(7, ((BoxOffice.Event) probe.expectMsgClass(Optional.class).get()).getTickets());
+    } finally {
+      TestKit.shutdownActorSystem(passivating);
+    }
+  }
+
+  @Test
+  public void testEventNameIsNotAnActorName() {
+    // アクター名に使えない文字（空白など）を含むイベントも作成でき、BoxOfficeを復元しても失敗しない
+    TestKit probe = new TestKit(system);
+    ActorRef boxOffice = system.actorOf(BoxOffice.props(0, 2000L));
+    boxOffice.tell(new BoxOffice.CreateEvent("Earth, Wind & Fire", 5), probe.getRef());
+    probe.expectMsgClass(BoxOffice.EventCreated.class);
+    boxOffice.tell(new BoxOffice.GetTickets("Earth, Wind & Fire", 2), probe.getRef());
+    assertEquals(2, probe.expectMsgClass(TicketSeller.Tickets.class).size());
+
+    boxOffice = restart(probe, boxOffice, system);
+    boxOffice.tell(new BoxOffice.GetEvent("Earth, Wind & Fire"), probe.getRef());
+    assertEquals(3, ((BoxOffice.Event) probe.expectMsgClass(Optional.class).get()).getTickets());
+  }
+
+  private static ActorRef restart(TestKit probe, ActorRef boxOffice, ActorSystem system) {
+    probe.watch(boxOffice);
+    system.stop(boxOffice);
+    probe.expectTerminated(boxOffice);
+    return system.actorOf(BoxOffice.props(0, 2000L));
+  }
+}
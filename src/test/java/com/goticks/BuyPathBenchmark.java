@@ -0,0 +1,107 @@
+package com.goticks;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static akka.pattern.PatternsCS.ask;
+
+// GetTickets -> Buy -> Tickets の経路のスループットと1リクエストあたりのアロケーション
+// 実行: mvn -Pbench test-compile exec:exec@bench -Dbench=BuyPathBenchmark
+// （gc.alloc.rate.norm が1リクエストあたりのアロケーション量）
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuyPathBenchmark {
+  // 1回の操作で同時に送るGetTicketsの数
+  private static final int BURST = 1000;
+
+  // DEBUGの場合はログのメッセージを組み立ててから捨てる
+  @Param({"INFO", "DEBUG"})
+  public String loglevel;
+
+  private ActorSystem system;
+  private ActorRef client;
+
+  // ログを出力せずに捨てるロガー
+  public static class DiscardingLogger extends AbstractActor {
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+          .match(Logging.InitializeLogger.class, init -> getSender().tell(Logging.loggerInitialized(), getSelf()))
+          .matchAny(event -> { })
+          .build();
+    }
+  }
+
+  // 1回分のBURSTを送る依頼（全ての返信を受け取ったらdoneを完了する）
+  private static class Burst {
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+  }
+
+  // BURST件のGetTicketsを一度に送り、すべての返信を受け取ったら完了する
+  private static class Client extends AbstractActor {
+    private final ActorRef boxOffice;
+    private final BoxOffice.GetTickets getTickets = new BoxOffice.GetTickets("RHCP", 1);
+    private CompletableFuture<Void> done;
+    private int waiting = 0;
+
+    Client(ActorRef boxOffice) {
+      this.boxOffice = boxOffice;
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+          .match(Burst.class, burst -> {
+            done = burst.done;
+            waiting = BURST;
+            for (int i = 0; i < BURST; i++)
+              boxOffice.tell(getTickets, getSelf());
+          })
+          .match(TicketSeller.Tickets.class, tickets -> {
+            if (--waiting == 0)
+              done.complete(null);
+          })
+          .build();
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Config config = ConfigFactory.parseString(
+        "akka.loglevel = " + loglevel + "\n" +
+        "akka.loggers = [\"com.goticks.BuyPathBenchmark$DiscardingLogger\"]")
+        .withFallback(BoxOfficeBenchmark.config());
+    system = ActorSystem.create("buy-path-bench", config);
+
+    ActorRef boxOffice = system.actorOf(BoxOffice.props(0, 5000L), "boxOffice-0");
+    ask(boxOffice, new BoxOffice.CreateEvent("RHCP", Integer.MAX_VALUE - 1), 5000L).toCompletableFuture().join();
+    client = system.actorOf(Props.create(Client.class, () -> new Client(boxOffice)), "client");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    TestKit.shutdownActorSystem(system);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BURST)
+  public void buy() {
+    Burst burst = new Burst();
+    client.tell(burst, ActorRef.noSender());
+    burst.done.join();
+  }
+}
@@ -0,0 +1,155 @@
+package com.goticks;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.MemberStatus;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.testkit.JUnitRouteTest;
+import akka.http.javadsl.testkit.TestRoute;
+import akka.persistence.journal.leveldb.SharedLeveldbJournal;
+import akka.persistence.journal.leveldb.SharedLeveldbStore;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class ClusterTest extends JUnitRouteTest {
+  private ActorSystem first;
+  private ActorSystem second;
+  private TestRoute firstRoute;
+  private TestRoute secondRoute;
+
+  // 同じJVMの2つのActorSystemでクラスターを組む（ジャーナルは1つ目のノードの共有LevelDB）
+  private static Config node(String journalDir, String store) {
+    return ConfigFactory.parseString(
+        "akka.actor.provider = cluster\n" +
+        "akka.remote.netty.tcp.hostname = \"127.0.0.1\"\n" +
+        "akka.remote.netty.tcp.port = 0\n" +
+        "akka.cluster.distributed-data.gossip-interval = 100ms\n" +
+        "akka.cluster.distributed-data.notify-subscribers-interval = 100ms\n" +
+        "akka.persistence.journal.plugin = \"akka.persistence.journal.leveldb-shared\"\n" +
+        "akka.persistence.journal.leveldb-shared.store.dir = \"" + journalDir + "\"\n" +
+        "akka.persistence.journal.leveldb-shared.store.native = off\n" +
+        "goticks.cluster.enabled = on\n" +
+        "goticks.cluster.number-of-shards = 10\n" +
+        "goticks.cluster.shared-journal-store = \"" + store + "\"\n" +
+        "goticks.box-office.shards = 2")
+        .withFallback(RestApiTest.inMemoryJournal());
+  }
+
+  @Before
+  public void initClass() throws Exception {
+    String journalDir = "target/test-journal/" + UUID.randomUUID();
+    first = ActorSystem.create("go-ticks", node(journalDir, ""));
+    ActorRef store = first.actorOf(Props.create(SharedLeveldbStore.class), "store");
+    SharedLeveldbJournal.setStore(store, first);
+
+    Address seed = Cluster.get(first).selfAddress();
+    second = ActorSystem.create("go-ticks", node(journalDir, seed + "/user/store"));
+    SellerSharding.startSharedJournal(second).toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+    Cluster.get(first).join(seed);
+    Cluster.get(second).join(seed);
+    new TestKit(first) {{
+      awaitAssert(Duration.ofSeconds(10), () -> {
+        assertEquals(2, Cluster.get(first).state().members().count(m -> m.status() == MemberStatus.up()));
+        assertEquals(2, Cluster.get(second).state().members().count(m -> m.status() == MemberStatus.up()));
+        return null;
+      });
+    }};
+
+    firstRoute = testRoute(new RestApi(first, 10000L).createRoute());
+    secondRoute = testRoute(new RestApi(second, 10000L).createRoute());
+  }
+
+  @After
+  public void tearDown() {
+    TestKit.shutdownActorSystem(second);
+    TestKit.shutdownActorSystem(first);
+  }
+
+  // シャードの割り当てを待つ場合があるので、応答を待つ時間を長めにする
+  @Override
+  public FiniteDuration awaitDuration() {
+    return FiniteDuration.create(15, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testAnyNodeServesAnyEvent() {
+    for (String name : new String[]{"RHCP", "Beck", "Oasis", "Muse", "Blur"}) {
+      firstRoute.run(HttpRequest.POST("/events/" + name)
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+              "{\"tickets\": 3}"))
+          .assertStatusCode(StatusCodes.CREATED)
+          .assertEntity("{\"name\":\"" + name + "\",\"tickets\":3}");
+    }
+
+    // 同じイベントはどちらのノードからも作れない
+    secondRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.BAD_REQUEST);
+
+    secondRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 2}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertEntity("{\"entries\":[{\"id\":1},{\"id\":2}],\"event\":\"RHCP\"}");
+
+    // イベントの取得も複製されたビューから返すので、別のノードでの購入はいずれ反映される
+    new TestKit(first) {{
+      awaitAssert(Duration.ofSeconds(10), () -> {
+        firstRoute.run(HttpRequest.GET("/events/RHCP"))
+            .assertStatusCode(StatusCodes.OK)
+            .assertEntity("{\"name\":\"RHCP\",\"tickets\":1}");
+        return null;
+      });
+    }};
+
+    secondRoute.run(HttpRequest.GET("/events/Unknown"))
+        .assertStatusCode(StatusCodes.NOT_FOUND);
+
+    // 一覧は分散データで複製されたビューから返すので、いずれ全ノードで一致する
+    new TestKit(second) {{
+      awaitAssert(Duration.ofSeconds(10), () -> {
+        secondRoute.run(HttpRequest.GET("/events"))
+            .assertStatusCode(StatusCodes.OK)
+            .assertEntity("{\"events\":[{\"name\":\"Beck\",\"tickets\":3},{\"name\":\"Blur\",\"tickets\":3}," +
+                "{\"name\":\"Muse\",\"tickets\":3},{\"name\":\"Oasis\",\"tickets\":3},{\"name\":\"RHCP\",\"tickets\":1}]}");
+        return null;
+      });
+    }};
+
+    secondRoute.run(HttpRequest.DELETE("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":1}");
+
+    firstRoute.run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.NOT_FOUND);
+
+    // キャンセルしたイベントは同じ名前で作り直せる（過去の販売は引き継がない）
+    firstRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 5}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    secondRoute.run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":5}");
+  }
+}
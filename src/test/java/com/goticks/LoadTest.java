@@ -0,0 +1,139 @@
+package com.goticks;
+
+import akka.actor.ActorSystem;
+import akka.http.javadsl.Http;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.StatusCode;
+import akka.stream.ActorMaterializer;
+import akka.stream.Materializer;
+import akka.stream.ThrottleMode;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.HdrHistogram.Histogram;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// 起動済みのサーバー（Main）に一定のレートでリクエストを送り、エンドポイントごとのレイテンシを集計する負荷試験
+// 実行: mvn -Pload test-compile exec:exec@load [-Dload="rate = 2000, duration = 60s"]
+// 引数は goticks.load-test の設定をHOCON形式で上書きする
+public class LoadTest {
+  private static final String BUY = "POST /events/:event/tickets";
+  private static final String GET_EVENTS = "GET /events";
+
+  // 1リクエストの結果
+  private static class Result {
+    private final String endpoint;
+    private final int status;
+    private final long latency;
+
+    Result(String endpoint, int status, long latency) {
+      this.endpoint = endpoint;
+      this.status = status;
+      this.latency = latency;
+    }
+  }
+
+  // エンドポイントごとの集計
+  private static class Stats {
+    private final Histogram latencies = new Histogram(TimeUnit.MINUTES.toNanos(1), 3);
+    private final Map<Integer, Long> statuses = new LinkedHashMap<>();
+
+    void record(Result result) {
+      latencies.recordValue(Math.min(result.latency, latencies.getHighestTrackableValue()));
+      statuses.merge(result.status, 1L, Long::sum);
+    }
+  }
+
+  public static void main(String[] args) {
+    final Config config = ConfigFactory.parseString(String.join("\n", args))
+        .withFallback(ConfigFactory.load().getConfig("goticks.load-test"));
+    final String uri = "http://" + config.getString("host") + ":" + config.getInt("port");
+    final int events = config.getInt("events");
+    final int tickets = config.getInt("tickets-per-event");
+    final int rate = config.getInt("rate");
+    final int concurrency = config.getInt("concurrency");
+    final Duration duration = config.getDuration("duration");
+    final double getEventsRatio = config.getDouble("get-events-ratio");
+
+    // 同時に送るリクエスト数に合わせて接続プールを広げる
+    final ActorSystem system = ActorSystem.create("load-test", ConfigFactory.parseString(
+        "akka.loglevel = INFO\n" +
+        "akka.http.host-connection-pool.max-connections = " + concurrency + "\n" +
+        "akka.http.host-connection-pool.max-open-requests = " + Integer.highestOneBit(concurrency * 2 - 1) * 2)
+        .withFallback(ConfigFactory.load()));
+    final Materializer materializer = ActorMaterializer.create(system);
+    final Http http = (Http) Http.apply(system);
+    // 後続の処理はForkJoinPool.commonPoolではなくアクターシステムのディスパッチャーで実行する
+    // （CPUが1つの環境ではcommonPoolが使えず、タスクごとにスレッドが作られてしまう）
+    final Executor executor = system.dispatcher();
+
+    try {
+      // イベントの作成（前回の実行で作成済みの場合は400が返るが、そのまま使う）
+      CompletableFuture.allOf(IntStream.range(0, events)
+          .mapToObj(i -> http.singleRequest(HttpRequest.POST(uri + "/events/load-" + i)
+              .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\":" + tickets + "}"))
+              .thenComposeAsync(response -> response.discardEntityBytes(materializer).completionStage(), executor)
+              .toCompletableFuture())
+          .toArray(CompletableFuture[]::new)).join();
+
+      long total = rate * duration.getSeconds();
+      System.out.printf("Sending %d requests to %s at %d req/s (concurrency %d, %d events)%n",
+          total, uri, rate, concurrency, events);
+
+      // オープンループ: レイテンシは応答待ちで送信が遅れた分も含めて、本来の送信予定時刻から測る
+      Map<String, Stats> stats = new LinkedHashMap<>();
+      long started = System.nanoTime();
+      Source.range(0, (int) total - 1)
+          .throttle(rate, Duration.ofSeconds(1), Math.max(1, rate / 100), ThrottleMode.shaping())
+          .mapAsyncUnordered(concurrency, i -> {
+            long scheduled = started + i * 1000000000L / rate;
+            boolean getEvents = ThreadLocalRandom.current().nextDouble() < getEventsRatio;
+            String endpoint = getEvents ? GET_EVENTS : BUY;
+            HttpRequest request = getEvents ?
+                HttpRequest.GET(uri + "/events") :
+                HttpRequest.POST(uri + "/events/load-" + ThreadLocalRandom.current().nextInt(events) + "/tickets")
+                    .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\":1}");
+
+            CompletionStage<Result> result = http.singleRequest(request)
+                .thenComposeAsync(response -> response.discardEntityBytes(materializer).completionStage()
+                    .thenApplyAsync(done -> response.status(), executor), executor)
+                .thenApplyAsync(status -> new Result(endpoint, status.intValue(), System.nanoTime() - scheduled), executor);
+            // 接続エラーなどはステータス0として数える
+            return result.exceptionally(failure -> new Result(endpoint, 0, System.nanoTime() - scheduled));
+          })
+          .runForeach(result -> stats.computeIfAbsent(result.endpoint, endpoint -> new Stats()).record(result), materializer)
+          .toCompletableFuture().join();
+      double elapsed = (System.nanoTime() - started) / 1e9;
+
+      report(stats, elapsed);
+    } finally {
+      system.terminate();
+    }
+  }
+
+  private static void report(Map<String, Stats> stats, double elapsed) {
+    System.out.printf("%n%-30s %8s %10s %10s %10s %10s %10s  %s%n",
+        "endpoint", "count", "req/s", "p50(ms)", "p99(ms)", "p99.9(ms)", "max(ms)", "status");
+    stats.forEach((endpoint, stat) -> {
+      Histogram h = stat.latencies;
+      System.out.printf("%-30s %8d %10.1f %10.2f %10.2f %10.2f %10.2f  %s%n",
+          endpoint, h.getTotalCount(), h.getTotalCount() / elapsed,
+          h.getValueAtPercentile(50) / 1e6, h.getValueAtPercentile(99) / 1e6,
+          h.getValueAtPercentile(99.9) / 1e6, h.getMaxValue() / 1e6,
+          stat.statuses.entrySet().stream()
+              .map(entry -> entry.getKey() + "=" + entry.getValue())
+              .collect(Collectors.joining(" ")));
+    });
+  }
+}
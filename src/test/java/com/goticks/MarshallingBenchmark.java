@@ -0,0 +1,87 @@
+package com.goticks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// RestApiが返すEventsとTicketSeller.TicketsのJacksonによる変換
+// events / tickets: 以前のJackson.marshaller()と同じくObjectMapperからStringを経由する
+// *Writer: JacksonCodecsと同じく型ごとのObjectWriterで直接バイト列にする、*Cbor: 同じ内容をCBORにする
+// 本文のサイズ（JSON / CBOR）はセットアップ時に表示する
+// 実行: mvn -Pbench test-compile exec:exec@bench -Dbench=MarshallingBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MarshallingBenchmark {
+  // イベント数、チケット枚数
+  @Param({"10", "1000", "100000"})
+  public int size;
+
+  // Jackson.marshaller()と同じ設定
+  private final ObjectMapper mapper = new ObjectMapper()
+      .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+  private final ObjectMapper cbor = new ObjectMapper(new CBORFactory())
+      .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+  private final ObjectWriter eventsWriter = mapper.writerFor(BoxOffice.Events.class);
+  private final ObjectWriter ticketsWriter = mapper.writerFor(TicketSeller.Tickets.class);
+  private final ObjectWriter eventsCborWriter = cbor.writerFor(BoxOffice.Events.class);
+  private final ObjectWriter ticketsCborWriter = cbor.writerFor(TicketSeller.Tickets.class);
+  private BoxOffice.Events events;
+  private TicketSeller.Tickets tickets;
+
+  @Setup(Level.Trial)
+  public void setup() throws JsonProcessingException {
+    List<BoxOffice.Event> list = IntStream.range(0, size)
+        .mapToObj(i -> new BoxOffice.Event("event-" + i, 100))
+        .collect(Collectors.toList());
+    events = new BoxOffice.Events(list);
+    tickets = new TicketSeller.Tickets("RHCP", Collections.singletonList(new TicketSeller.TicketRange(1, size)));
+
+    System.out.printf("%n[size=%d] events: json=%d bytes, cbor=%d bytes / tickets: json=%d bytes, cbor=%d bytes%n",
+        size, eventsWriter.writeValueAsBytes(events).length, eventsCborWriter.writeValueAsBytes(events).length,
+        ticketsWriter.writeValueAsBytes(tickets).length, ticketsCborWriter.writeValueAsBytes(tickets).length);
+  }
+
+  @Benchmark
+  public byte[] events() throws JsonProcessingException {
+    return mapper.writeValueAsString(events).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public byte[] eventsWriter() throws JsonProcessingException {
+    return eventsWriter.writeValueAsBytes(events);
+  }
+
+  @Benchmark
+  public byte[] eventsCbor() throws JsonProcessingException {
+    return eventsCborWriter.writeValueAsBytes(events);
+  }
+
+  @Benchmark
+  public byte[] tickets() throws JsonProcessingException {
+    return mapper.writeValueAsString(tickets).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public byte[] ticketsWriter() throws JsonProcessingException {
+    return ticketsWriter.writeValueAsBytes(tickets);
+  }
+
+  @Benchmark
+  public byte[] ticketsCbor() throws JsonProcessingException {
+    return ticketsCborWriter.writeValueAsBytes(tickets);
+  }
+}
@@ -0,0 +1,113 @@
+package com.goticks;
+
+import akka.actor.ActorSystem;
+import akka.http.javadsl.model.HttpRequest;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.testkit.JUnitRouteTest;
+import akka.http.javadsl.testkit.TestRoute;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class RecoveryTest extends JUnitRouteTest {
+  private Config config;
+
+  @Before
+  public void initClass() {
+    String dir = "target/test-journal/" + UUID.randomUUID();
+    config = ConfigFactory.parseString(
+        "akka.persistence.journal.leveldb.dir = \"" + dir + "/journal\"\n" +
+        "akka.persistence.snapshot-store.local.dir = \"" + dir + "/snapshots\"\n" +
+        "goticks.sales-journal.file = \"" + dir + "/sales.journal\"\n" +
+        "goticks.persistence.snapshot-interval = 2")
+        .withFallback(ConfigFactory.load());
+  }
+
+  private TestRoute start(ActorSystem system) {
+    return testRoute(new RestApi(system, 2000L).createRoute());
+  }
+
+  @Test
+  public void testRecoverAfterRestart() {
+    final ActorSystem first = ActorSystem.create("go-ticks", config);
+    TestRoute appRoute = start(first);
+
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 10}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    appRoute.run(HttpRequest.POST("/events/Muse")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 5}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    for (int i = 0; i < 3; i++) {
+      appRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+              "{\"tickets\": 2}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+    appRoute.run(HttpRequest.DELETE("/events/Muse"))
+        .assertStatusCode(StatusCodes.OK);
+
+    TestKit.shutdownActorSystem(first);
+
+    final ActorSystem second = ActorSystem.create("go-ticks", config);
+    appRoute = start(second);
+
+    appRoute.run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":4}");
+    appRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertEntity("{\"entries\":[{\"id\":7}],\"event\":\"RHCP\"}");
+    appRoute.run(HttpRequest.GET("/events/Muse"))
+        .assertStatusCode(StatusCodes.NOT_FOUND);
+
+    TestKit.shutdownActorSystem(second);
+  }
+
+  // 初回の起動で記録したシャード数と違う値を指定した場合は起動しない（0の場合は記録した値を使う）
+  @Test
+  public void testShardCountIsRecorded() {
+    final ActorSystem first = ActorSystem.create("go-ticks",
+        ConfigFactory.parseString("goticks.box-office.shards = 3").withFallback(config));
+    TestRoute appRoute = start(first);
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 10}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    appRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    TestKit.shutdownActorSystem(first);
+
+    final ActorSystem second = ActorSystem.create("go-ticks",
+        ConfigFactory.parseString("goticks.box-office.shards = 4").withFallback(config));
+    try {
+      start(second);
+      fail("started with a different shard count");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("3 shards"));
+    }
+    TestKit.shutdownActorSystem(second);
+
+    final ActorSystem third = ActorSystem.create("go-ticks",
+        ConfigFactory.parseString("goticks.box-office.shards = 0").withFallback(config));
+    start(third).run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":9}");
+    TestKit.shutdownActorSystem(third);
+  }
+}
@@ -1,25 +1,68 @@
 package com.goticks;
 
 import akka.NotUsed;
+import akka.actor.ActorIdentity;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Identify;
+import akka.actor.PoisonPill;
 
 import akka.http.javadsl.model.*;
 import akka.http.javadsl.testkit.JUnitRouteTest;
+import akka.http.javadsl.server.Route;
 import akka.http.javadsl.testkit.TestRoute;
+import akka.http.javadsl.testkit.TestRouteResult;
 import org.junit.Before;
 import org.junit.Test;
 import akka.http.javadsl.model.HttpRequest;
 import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.model.headers.Accept;
+import akka.http.javadsl.model.headers.ETag;
+import akka.http.javadsl.model.headers.EntityTag;
+import akka.http.javadsl.model.headers.EntityTagRange;
+import akka.http.javadsl.model.headers.IfNoneMatch;
+import akka.stream.javadsl.Source;
+import akka.testkit.javadsl.TestKit;
+import akka.util.ByteString;
+import com.goticks.EventMarshalling.*;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class RestApiTest extends JUnitRouteTest {
   private TestRoute appRoute;
 
 
+  // テストではジャーナルをメモリ上に置く
+  static Config inMemoryJournal() {
+    return ConfigFactory.parseString(
+        "akka.persistence.journal.plugin = \"akka.persistence.journal.inmem\"\n" +
+        "akka.persistence.snapshot-store.local.dir = \"target/test-snapshots/" + UUID.randomUUID() + "\"\n" +
+        "goticks.sales-journal.enabled = off")
+        .withFallback(ConfigFactory.load());
+  }
+
   @Before
   public void initClass() {
-    final ActorSystem system = ActorSystem.create("go-ticks");
+    final ActorSystem system = ActorSystem.create("go-ticks", inMemoryJournal());
     RestApi server = new RestApi(system, 2000L);
     appRoute = testRoute(server.createRoute());
   }
@@ -47,6 +90,104 @@ public class RestApiTest extends JUnitRouteTest {
         .assertEntity("{\"events\":[{\"name\":\"RHCP\",\"tickets\":3}]}");
   }
 
+  @Test
+  public void testEventsAcrossShards() {
+    for (String name : new String[]{"RHCP", "Beck", "Oasis", "Muse", "Blur"}) {
+      appRoute.run(HttpRequest.POST("/events/" + name)
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+              "{\"tickets\": 3}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+
+    appRoute.run(HttpRequest.GET("/events"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json")
+        .assertEntity("{\"events\":[{\"name\":\"Beck\",\"tickets\":3},{\"name\":\"Blur\",\"tickets\":3}," +
+            "{\"name\":\"Muse\",\"tickets\":3},{\"name\":\"Oasis\",\"tickets\":3},{\"name\":\"RHCP\",\"tickets\":3}]}");
+  }
+
+  @Test
+  public void testEventsPaginated() {
+    for (String name : new String[]{"RHCP", "Beck", "Oasis", "Muse", "Blur"}) {
+      appRoute.run(HttpRequest.POST("/events/" + name)
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+              "{\"tickets\": 3}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+
+    appRoute.run(HttpRequest.GET("/events?limit=2"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"events\":[{\"name\":\"Beck\",\"tickets\":3},{\"name\":\"Blur\",\"tickets\":3}],\"next\":\"Blur\"}");
+    appRoute.run(HttpRequest.GET("/events?limit=2&after=Blur"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"events\":[{\"name\":\"Muse\",\"tickets\":3},{\"name\":\"Oasis\",\"tickets\":3}],\"next\":\"Oasis\"}");
+    appRoute.run(HttpRequest.GET("/events?limit=2&after=Oasis"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"events\":[{\"name\":\"RHCP\",\"tickets\":3}]}");
+
+    // 数値でない、または1未満のlimitはページなしの一覧にせず400を返す
+    for (String limit : new String[]{"abc", "0", "-1", ""}) {
+      appRoute.run(HttpRequest.GET("/events?limit=" + limit + "&after=Blur"))
+          .assertStatusCode(StatusCodes.BAD_REQUEST);
+    }
+    appRoute.run(HttpRequest.GET("/events?limit=abc"))
+        .assertStatusCode(StatusCodes.BAD_REQUEST)
+        .assertEntity("{\"message\":\"limit must be a positive integer.\"}");
+  }
+
+  @Test
+  public void testEventsStreamed() {
+    // 1ページ2件ずつシャードから取得する
+    final ActorSystem system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.rest-api.events-page-size = 2").withFallback(inMemoryJournal()));
+    TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+    for (String name : new String[]{"RHCP", "Beck", "Oasis", "Muse", "Blur"}) {
+      route.run(HttpRequest.POST("/events/" + name)
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+              "{\"tickets\": 3}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+
+    route.run(HttpRequest.GET("/events?stream=ndjson"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/x-ndjson")
+        .assertEntity("{\"name\":\"Beck\",\"tickets\":3}\n{\"name\":\"Blur\",\"tickets\":3}\n" +
+            "{\"name\":\"Muse\",\"tickets\":3}\n{\"name\":\"Oasis\",\"tickets\":3}\n{\"name\":\"RHCP\",\"tickets\":3}\n");
+    route.run(HttpRequest.GET("/events?stream=json"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json")
+        .assertEntity("{\"events\":[{\"name\":\"Beck\",\"tickets\":3},{\"name\":\"Blur\",\"tickets\":3}," +
+            "{\"name\":\"Muse\",\"tickets\":3},{\"name\":\"Oasis\",\"tickets\":3},{\"name\":\"RHCP\",\"tickets\":3}]}");
+
+    // CBORを求められてもJSON（NDJSON）しか返さないので、ETagは同じでVary: Acceptも付けない
+    String tag = route.run(HttpRequest.GET("/events?stream=ndjson"))
+        .assertHeaderKindNotExists("vary")
+        .header(ETag.class).etag().tag();
+    route.run(HttpRequest.GET("/events?stream=ndjson")
+        .addHeader(Accept.create(MediaRanges.create(JacksonCodecs.CBOR_MEDIA_TYPE)))
+        .addHeader(IfNoneMatch.create(EntityTagRange.create(EntityTag.create(tag, false)))))
+        .assertStatusCode(StatusCodes.NOT_MODIFIED)
+        .assertHeaderKindNotExists("vary");
+    route.run(HttpRequest.GET("/events?limit=2")
+        .addHeader(Accept.create(MediaRanges.create(JacksonCodecs.CBOR_MEDIA_TYPE)))
+        .addHeader(IfNoneMatch.create(EntityTagRange.create(EntityTag.create(tag, false)))))
+        .assertStatusCode(StatusCodes.NOT_MODIFIED)
+        .assertHeaderKindNotExists("vary");
+  }
+
+  @Test
+  public void testEventsStaleness() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    appRoute.run(HttpRequest.GET("/events?staleness=true"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertHeaderExists(RestApi.STALENESS_HEADER, "0")
+        .assertEntity("{\"events\":[{\"name\":\"RHCP\",\"tickets\":3}]}");
+  }
+
   @Test
   public void testBuy() {
     appRoute.run(HttpRequest.POST("/events/RHCP")
@@ -69,6 +210,574 @@ public class RestApiTest extends JUnitRouteTest {
         .assertEntity("{\"events\":[{\"name\":\"RHCP\",\"tickets\":1}]}");
   }
 
+  @Test
+  public void testBuyLargeEvent() {
+    appRoute.run(HttpRequest.POST("/events/Stadium")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 500000}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType("application/json")
+        .assertEntity("{\"name\":\"Stadium\",\"tickets\":500000}");
+
+    appRoute.run(HttpRequest.POST("/events/Stadium/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 2}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType("application/json")
+        .assertEntity("{\"entries\":[{\"id\":1},{\"id\":2}],\"event\":\"Stadium\"}");
+
+    appRoute.run(HttpRequest.GET("/events/Stadium"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json")
+        .assertEntity("{\"name\":\"Stadium\",\"tickets\":499998}");
+  }
+
+  @Test
+  public void testBuyRanges() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 30000}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    appRoute.run(HttpRequest.POST("/events/RHCP/tickets?format=ranges")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 100}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType("application/json")
+        .assertEntity("{\"event\":\"RHCP\",\"ranges\":[[1,100]]}");
+
+    appRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+        .addHeader(Accept.create(RestApi.RANGES_MEDIA_TYPE.toRange()))
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 20000}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType(RestApi.RANGES_MEDIA_TYPE)
+        .assertEntity("{\"event\":\"RHCP\",\"ranges\":[[101,20100]]}");
+  }
+
+  @Test
+  public void testBuyStreamed() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 5000}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    String entries = IntStream.rangeClosed(1, 3000)
+        .mapToObj(id -> "{\"id\":" + id + "}")
+        .collect(Collectors.joining(","));
+
+    appRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3000}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType("application/json")
+        .assertEntity("{\"entries\":[" + entries + "],\"event\":\"RHCP\"}");
+  }
+
+  @Test
+  public void testBuyBatch() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    appRoute.run(HttpRequest.POST("/events/Muse")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    appRoute.run(HttpRequest.POST("/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"items\": [{\"event\": \"RHCP\", \"tickets\": 2}, {\"event\": \"Muse\", \"tickets\": 2}]}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType("application/json")
+        .assertEntity("{\"items\":[{\"entries\":[{\"id\":1},{\"id\":2}],\"event\":\"RHCP\",\"status\":\"purchased\"}," +
+            "{\"entries\":[],\"event\":\"Muse\",\"status\":\"unavailable\"}]}");
+  }
+
+  @Test
+  public void testBuyBatchInvalidItems() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    // イベント名のない項目や枚数が1未満の項目があれば、他の項目も購入しない
+    appRoute.run(HttpRequest.POST("/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"items\": [{\"event\": \"RHCP\", \"tickets\": 2}, {\"tickets\": 1}]}"))
+        .assertStatusCode(StatusCodes.BAD_REQUEST);
+    appRoute.run(HttpRequest.POST("/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"items\": [{\"event\": \"RHCP\", \"tickets\": 2}, {\"event\": \"RHCP\", \"tickets\": -1}]}"))
+        .assertStatusCode(StatusCodes.BAD_REQUEST);
+
+    appRoute.run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":3}");
+  }
+
+  @Test
+  public void testBuyBatchAllOrNothing() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    appRoute.run(HttpRequest.POST("/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"items\": [{\"event\": \"RHCP\", \"tickets\": 2}, {\"event\": \"Muse\", \"tickets\": 2}], \"allOrNothing\": true}"))
+        .assertStatusCode(StatusCodes.CONFLICT)
+        .assertMediaType("application/json")
+        .assertEntity("{\"items\":[{\"entries\":[],\"event\":\"RHCP\",\"status\":\"released\"}," +
+            "{\"entries\":[],\"event\":\"Muse\",\"status\":\"unavailable\"}]}");
+
+    // 取り消したチケットは返信の後で在庫に戻り、イベントの取得はビューから返すので、いずれ反映される
+    new TestKit(system()) {{
+      awaitAssert(Duration.ofSeconds(3), () -> {
+        appRoute.run(HttpRequest.GET("/events/RHCP"))
+            .assertStatusCode(StatusCodes.OK)
+            .assertEntity("{\"name\":\"RHCP\",\"tickets\":3}");
+        return null;
+      });
+    }};
+  }
+
+  @Test
+  public void testPipeline() {
+    // 処理中1件、待ち1件までのパイプラインで、8シャードに同時にaskする
+    final ActorSystem system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.rest-api.pipeline { enabled = on, buffer-size = 1, parallelism = 1 }\n" +
+        "goticks.box-office.shards = 8").withFallback(inMemoryJournal()));
+    TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+
+    route.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    route.run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":3}");
+
+    route.run(HttpRequest.GET("/events"))
+        .assertStatusCode(StatusCodes.SERVICE_UNAVAILABLE)
+        .assertHeaderExists("Retry-After", "1");
+
+    String metrics = route.run(HttpRequest.GET("/metrics")).entityString();
+    assertTrue(metrics.contains("goticks_rejected_requests_total{reason=\"pipeline-full\"} "));
+  }
+
+  @Test
+  public void testImport() {
+    final ActorSystem system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.rest-api.import.progress-every = 2").withFallback(inMemoryJournal()));
+    TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+
+    route.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    // 既にあるイベントや読めない行があっても最後まで作成する
+    String ndjson = route.run(HttpRequest.POST("/events")
+        .withEntity(RestApi.NDJSON_MEDIA_TYPE.toContentType(),
+            "{\"name\":\"Beck\",\"tickets\":5}\n" +
+            "{\"name\":\"RHCP\",\"tickets\":5}\n" +
+            "\n" +
+            "{\"name\":\"Muse\",\"tickets\":\"many\"}\n" +
+            "{\"name\":\"Blur\",\"tickets\":2}"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/x-ndjson")
+        .entityString();
+    assertTrue(ndjson.contains("{\"line\":2,\"name\":\"RHCP\",\"error\":\"RHCP exists already.\"}\n"));
+    assertTrue(ndjson.contains("{\"line\":4,\"name\":\"Muse\",\"error\":\"invalid tickets: many\"}\n"));
+    assertTrue(ndjson.contains("{\"progress\":{\"rows\":2,"));
+    assertTrue(ndjson.contains("{\"done\":{\"rows\":4,\"created\":2,\"failed\":2,"));
+
+    String csv = route.run(HttpRequest.POST("/events")
+        .withEntity(ContentTypes.TEXT_CSV_UTF8,
+            "name,tickets\r\nOasis,4\r\n\"Earth, Wind & Fire\",1\r\n"))
+        .assertStatusCode(StatusCodes.OK)
+        .entityString();
+    assertTrue(csv.contains("{\"done\":{\"rows\":2,\"created\":2,\"failed\":0,"));
+
+    route.run(HttpRequest.GET("/events"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"events\":[{\"name\":\"Beck\",\"tickets\":5},{\"name\":\"Blur\",\"tickets\":2}," +
+            "{\"name\":\"Earth, Wind & Fire\",\"tickets\":1},{\"name\":\"Oasis\",\"tickets\":4}," +
+            "{\"name\":\"RHCP\",\"tickets\":3}]}");
+
+    route.run(HttpRequest.POST("/events")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "[]"))
+        .assertStatusCode(StatusCodes.UNSUPPORTED_MEDIA_TYPE);
+    system.terminate();
+  }
+
+  // 長すぎる行で読むのをやめても、作成中の行が終わるのを待ってからまとめを返す
+  @Test
+  public void testImportStopsOnLongLine() throws Exception {
+    EventImport eventImport = new EventImport(ConfigFactory.parseString(
+        "parallelism = 4, progress-every = 100, max-line-length = 32"));
+    Source<ByteString, Object> upload = Source.single(ByteString.fromString(
+        "Beck,5\nBlur,2\n" + String.join("", Collections.nCopies(40, "x")) + ",1\n"))
+        .mapMaterializedValue(notUsed -> notUsed);
+    String result = eventImport.run(upload, EventImport.Format.CSV,
+        (name, tickets) -> {
+          CompletableFuture<BoxOffice.EventResponse> created = new CompletableFuture<>();
+          system().scheduler().scheduleOnce(scala.concurrent.duration.Duration.create(200, TimeUnit.MILLISECONDS),
+              () -> created.complete(new BoxOffice.EventCreated(new BoxOffice.Event(name, tickets))),
+              system().dispatcher());
+          return created;
+        })
+        .runFold("", (all, line) -> all + line.utf8String(), materializer())
+        .toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+    assertTrue(result.contains("{\"error\":\"line longer than 32 bytes, import stopped\"}\n"));
+    assertTrue(result.contains("{\"done\":{\"rows\":2,\"created\":2,\"failed\":0,"));
+  }
+
+  @Test
+  public void testWarmUp() throws Exception {
+    final ActorSystem system = ActorSystem.create("go-ticks", inMemoryJournal());
+    RestApi server = new RestApi(system, 2000L);
+    Route route = server.createRoute();
+
+    new WarmUp(system, ConfigFactory.parseString("requests = 100"))
+        .run(route, system, materializer()).toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+    // ウォームアップのイベントはキャンセル済みで、返信待ちのaskも残らない
+    testRoute(route).run(HttpRequest.GET("/events"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"events\":[]}");
+    server.awaitPendingAsks(system, Duration.ofSeconds(5)).toCompletableFuture().get(10, TimeUnit.SECONDS);
+    assertEquals(0, server.pendingAsks());
+    system.terminate();
+  }
+
+  @Test
+  public void testIsolatedWarmUp() throws Exception {
+    // 本番と同じ設定でも、ウォームアップは別のアクターシステムのメモリ上のジャーナルに書く
+    Config config = ConfigFactory.parseString("goticks.warm-up.requests = 100").withFallback(ConfigFactory.load());
+    WarmUp.isolated(config, 2000L).toCompletableFuture().get(20, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testDrainPhaseTimeout() {
+    Config config = Main.withDrainPhaseTimeout(
+        ConfigFactory.parseString("goticks.shutdown.drain-timeout = 3s").withFallback(ConfigFactory.load()));
+    assertEquals(Duration.ofSeconds(11),
+        config.getDuration("akka.coordinated-shutdown.phases.service-requests-done.timeout"));
+  }
+
+  @Test
+  public void testShardPlacement() {
+    final ActorSystem system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.box-office.shards = 4").withFallback(inMemoryJournal()));
+    try {
+      TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+      TestKit probe = new TestKit(system);
+      int virtualNodesFactor = system.settings().config().getInt("goticks.box-office.virtual-nodes-factor");
+      List<String> names = IntStream.range(0, 20).mapToObj(i -> "event-" + i).collect(Collectors.toList());
+      Set<Integer> used = new HashSet<>();
+
+      for (String name : names) {
+        route.run(HttpRequest.POST("/events/" + name)
+            .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 3}"))
+            .assertStatusCode(StatusCodes.CREATED);
+
+        // TicketSellerを持っているBoxOfficeはちょうど1つ
+        List<Integer> owners = IntStream.range(0, 4).filter(shard -> {
+          system.actorSelection("/user/boxOffice-" + shard + "/" + name).tell(new Identify(name), probe.getRef());
+          return probe.expectMsgClass(ActorIdentity.class).getActorRef().isPresent();
+        }).boxed().collect(Collectors.toList());
+        assertEquals(1, owners.size());
+        used.add(owners.get(0));
+
+        // 同じ名前は作り直したリングでも同じBoxOfficeに振り分けられる
+        assertEquals(owners.get(0), RestApi.boxOfficeRing(4, virtualNodesFactor).nodeFor(name));
+        route.run(HttpRequest.POST("/events/" + name)
+            .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 3}"))
+            .assertStatusCode(StatusCodes.BAD_REQUEST);
+      }
+
+      // 違う名前は複数のBoxOfficeに分かれる
+      assertTrue(used.size() > 1);
+    } finally {
+      TestKit.shutdownActorSystem(system);
+    }
+  }
+
+  @Test
+  public void testCreateExistingPassivatedEvent() {
+    final ActorSystem system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.ticket-seller.passivate-after = 200ms").withFallback(inMemoryJournal()));
+    try {
+      TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+      route.run(HttpRequest.POST("/events/RHCP")
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 10}"))
+          .assertStatusCode(StatusCodes.CREATED);
+      route.run(HttpRequest.POST("/events/RHCP/tickets")
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 4}"))
+          .assertStatusCode(StatusCodes.CREATED);
+      Metrics metrics = Metrics.get(system);
+      TestKit probe = new TestKit(system);
+      probe.awaitAssert(Duration.ofSeconds(3), () -> {
+        assertEquals(1, metrics.passivatedSellers().sum());
+        return null;
+      });
+
+      // 停止中のTicketSellerのイベントも作り直さない（売れたチケットが在庫に戻らない）
+      route.run(HttpRequest.POST("/events/RHCP")
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 10}"))
+          .assertStatusCode(StatusCodes.BAD_REQUEST)
+          .assertEntity("{\"message\":\"RHCP exists already.\"}");
+      route.run(HttpRequest.GET("/events/RHCP"))
+          .assertStatusCode(StatusCodes.OK)
+          .assertEntity("{\"name\":\"RHCP\",\"tickets\":6}");
+    } finally {
+      TestKit.shutdownActorSystem(system);
+    }
+  }
+
+  @Test
+  public void testAffinityDispatcher() {
+    // TicketSellerをアフィニティプールで動かしても同じように購入できる
+    final ActorSystem system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.ticket-seller.dispatcher = \"goticks.dispatchers.ticket-seller-affinity\"\n" +
+        "goticks.box-office.shards = 2").withFallback(inMemoryJournal()));
+    TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+
+    route.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    route.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 2}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertEntity("{\"entries\":[{\"id\":1},{\"id\":2}],\"event\":\"RHCP\"}");
+    route.run(HttpRequest.GET("/events"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"events\":[{\"name\":\"RHCP\",\"tickets\":1}]}");
+    system.terminate();
+  }
+
+  @Test
+  public void testGetEventFromView() {
+    final ActorSystem system = ActorSystem.create("go-ticks", inMemoryJournal());
+    TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+    for (String name : new String[]{"RHCP", "Beck"}) {
+      route.run(HttpRequest.POST("/events/" + name)
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+              "{\"tickets\": 3}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+    route.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 2}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    route.run(HttpRequest.DELETE("/events/Beck"))
+        .assertStatusCode(StatusCodes.OK);
+
+    // BoxOfficeが止まっていても、ビューにあるイベントは読める
+    system.actorSelection("/user/boxOffice-*").tell(PoisonPill.getInstance(), ActorRef.noSender());
+    route.run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":1}");
+    assertFalse(AvailabilityView.get(system).get("Beck").isPresent());
+  }
+
+  @Test
+  public void testConditionalGet() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    String eventTag = appRoute.run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .header(ETag.class).etag().tag();
+    String catalogTag = appRoute.run(HttpRequest.GET("/events"))
+        .assertStatusCode(StatusCodes.OK)
+        .header(ETag.class).etag().tag();
+
+    // 変わっていなければ本文を返さない
+    appRoute.run(HttpRequest.GET("/events/RHCP")
+        .addHeader(IfNoneMatch.create(EntityTagRange.create(EntityTag.create(eventTag, false)))))
+        .assertStatusCode(StatusCodes.NOT_MODIFIED);
+    appRoute.run(HttpRequest.GET("/events")
+        .addHeader(IfNoneMatch.create(EntityTagRange.create(EntityTag.create(catalogTag, false)))))
+        .assertStatusCode(StatusCodes.NOT_MODIFIED);
+
+    appRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    appRoute.run(HttpRequest.GET("/events/RHCP")
+        .addHeader(IfNoneMatch.create(EntityTagRange.create(EntityTag.create(eventTag, false)))))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":2}");
+    appRoute.run(HttpRequest.GET("/events")
+        .addHeader(IfNoneMatch.create(EntityTagRange.create(EntityTag.create(catalogTag, false)))))
+        .assertStatusCode(StatusCodes.OK)
+        .assertEntity("{\"events\":[{\"name\":\"RHCP\",\"tickets\":2}]}");
+  }
+
+  @Test
+  public void testAdmissionRateLimit() {
+    // イベントごとに続けて2件まで、その後は100秒に1件
+    final ActorSystem system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.box-office.admission { rate = 0.01, burst = 2 }").withFallback(inMemoryJournal()));
+    TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+    for (String name : new String[]{"RHCP", "Beck"}) {
+      route.run(HttpRequest.POST("/events/" + name)
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+              "{\"tickets\": 10}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+
+    for (int i = 0; i < 2; i++) {
+      route.run(HttpRequest.POST("/events/RHCP/tickets")
+          .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 1}"))
+          .assertStatusCode(StatusCodes.CREATED);
+    }
+    route.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.TOO_MANY_REQUESTS)
+        .assertHeaderExists("Retry-After", "100");
+
+    // 受け付けなかったリクエストもレイテンシに数える
+    String metrics = route.run(HttpRequest.GET("/metrics")).entityString();
+    assertTrue(metrics.contains(
+        "goticks_http_request_duration_seconds_count{route=\"POST /events/:event/tickets\"} 3\n"));
+
+    // 他のイベントには影響しない
+    route.run(HttpRequest.POST("/events/Beck/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.CREATED);
+  }
+
+  @Test
+  public void testWaitingRoom() throws Exception {
+    // 100msごとに1人ずつ購入を許可する
+    final ActorSystem system = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.waiting-room { batch-size = 1, interval = 100ms }").withFallback(inMemoryJournal()));
+    TestRoute route = testRoute(new RestApi(system, 2000L).createRoute());
+    route.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 10}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    route.run(HttpRequest.PUT("/events/RHCP/waiting-room"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    // 待合室が開いている間は、まず列に並ぶ
+    String queued = route.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.ACCEPTED)
+        .assertHeaderExists("Retry-After", "1")
+        .entityString();
+    assertTrue(queued.contains("\"position\":1"));
+    String token = queued.replaceAll(".*\"token\":\"([^\"]+)\".*", "$1");
+
+    String position = "";
+    for (int i = 0; i < 50 && !position.contains("\"admitted\":true"); i++) {
+      Thread.sleep(100);
+      position = route.run(HttpRequest.GET("/events/RHCP/waiting-room/" + token))
+          .assertStatusCode(StatusCodes.OK)
+          .entityString();
+    }
+    assertTrue(position.contains("\"position\":0"));
+
+    route.run(HttpRequest.POST("/events/RHCP/tickets?token=" + token)
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    // 使ったトークンでは購入できない
+    route.run(HttpRequest.POST("/events/RHCP/tickets?token=" + token)
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.ACCEPTED);
+
+    route.run(HttpRequest.DELETE("/events/RHCP/waiting-room"))
+        .assertStatusCode(StatusCodes.NO_CONTENT);
+    route.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.CREATED);
+  }
+
+  @Test
+  public void testHolds() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 4}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    String held = appRoute.run(HttpRequest.POST("/events/RHCP/holds")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 3}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .entityString();
+    assertTrue(held.contains("\"entries\":[{\"id\":1},{\"id\":2},{\"id\":3}]"));
+    String id = held.replaceAll(".*\"id\":([0-9]+)}$", "$1");
+
+    // 仮押さえ中のチケットは販売できない
+    appRoute.run(HttpRequest.GET("/events/RHCP"))
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":1}");
+    appRoute.run(HttpRequest.POST("/events/RHCP/holds/" + id + "/confirm"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertEntity("{\"entries\":[{\"id\":1},{\"id\":2},{\"id\":3}],\"event\":\"RHCP\"}");
+    appRoute.run(HttpRequest.DELETE("/events/RHCP/holds/" + id))
+        .assertStatusCode(StatusCodes.NOT_FOUND);
+
+    String another = appRoute.run(HttpRequest.POST("/events/RHCP/holds")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(), "{\"tickets\": 1}"))
+        .assertStatusCode(StatusCodes.CREATED)
+        .entityString();
+    appRoute.run(HttpRequest.DELETE("/events/RHCP/holds/" + another.replaceAll(".*\"id\":([0-9]+)}$", "$1")))
+        .assertStatusCode(StatusCodes.NO_CONTENT);
+    appRoute.run(HttpRequest.GET("/events/RHCP"))
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":1}");
+  }
+
+  @Test
+  public void testTicketsSoldLabelLimit() {
+    // 上限を超えたイベントはotherにまとめ、キャンセルで空いた分は次のイベントが使う
+    Metrics metrics = new Metrics(2);
+    metrics.ticketsSold("RHCP").add(2);
+    metrics.ticketsSold("Beck").add(3);
+    metrics.ticketsSold("Muse").add(4);
+    metrics.ticketsSold("Blur").add(1);
+    metrics.eventCancelled("Beck");
+    metrics.ticketsSold("Oasis").add(5);
+
+    String rendered = metrics.render();
+    assertTrue(rendered.contains("goticks_tickets_sold_total{event=\"RHCP\"} 2\n"));
+    assertTrue(rendered.contains("goticks_tickets_sold_total{event=\"Oasis\"} 5\n"));
+    assertTrue(rendered.contains("goticks_tickets_sold_total{event=\"other\"} 5\n"));
+    assertFalse(rendered.contains("event=\"Beck\""));
+    assertFalse(rendered.contains("event=\"Muse\""));
+  }
+
+  @Test
+  public void testMetrics() {
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 10}"))
+        .assertStatusCode(StatusCodes.CREATED);
+    appRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(MediaTypes.APPLICATION_JSON.toContentType(),
+            "{\"tickets\": 2}"))
+        .assertStatusCode(StatusCodes.CREATED);
+
+    String metrics = appRoute.run(HttpRequest.GET("/metrics"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("text/plain")
+        .entityString();
+
+    assertTrue(metrics.contains("goticks_tickets_sold_total{event=\"RHCP\"} 2\n"));
+    assertTrue(metrics.contains("goticks_http_request_duration_seconds_count{route=\"POST /events/:event/tickets\"} 1\n"));
+    assertTrue(metrics.contains("goticks_http_request_duration_seconds_bucket{route=\"POST /events/:name\",le=\"+Inf\"} 1\n"));
+    assertTrue(metrics.contains("goticks_mailbox_depth{actor=\"TicketSeller\"} "));
+    assertTrue(metrics.contains("goticks_actor_processing_seconds_count{actor=\"BoxOffice\"} "));
+  }
+
   @Test
   public void testBuyNotEnough() {
     appRoute.run(HttpRequest.POST("/events/RHCP")
@@ -197,4 +906,48 @@ public class RestApiTest extends JUnitRouteTest {
         .assertMediaType("text/plain")
         .assertEntity("The requested resource could not be found but may be available again in the future.");
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testCbor() throws Exception {
+    ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+    MediaType.Binary cborType = MediaTypes.applicationBinary("cbor", false);
+
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(cborType.toContentType(), cbor.writeValueAsBytes(new EventDescription(3)))
+        .addHeader(Accept.create(MediaRanges.create(cborType))))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType("application/cbor")
+        .assertEntityBytes(ByteString.fromArray(cbor.writeValueAsBytes(new BoxOffice.Event("RHCP", 3))));
+
+    appRoute.run(HttpRequest.POST("/events/RHCP/tickets")
+        .withEntity(cborType.toContentType(), cbor.writeValueAsBytes(new TicketRequest(2)))
+        .addHeader(Accept.create(MediaRanges.create(cborType))))
+        .assertStatusCode(StatusCodes.CREATED)
+        .assertMediaType("application/cbor");
+
+    // Acceptの指定がなければJSONのまま
+    TestRouteResult json = appRoute.run(HttpRequest.GET("/events/RHCP"))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/json")
+        .assertHeaderExists("Vary", "Accept")
+        .assertEntity("{\"name\":\"RHCP\",\"tickets\":1}");
+
+    // JSONとCBORは別のETagになり、JSONのETagでCBORの304は返らない
+    String jsonTag = json.header(ETag.class).etag().tag();
+    TestRouteResult binary = appRoute.run(HttpRequest.GET("/events/RHCP")
+        .addHeader(Accept.create(MediaRanges.create(cborType)))
+        .addHeader(IfNoneMatch.create(EntityTagRange.create(EntityTag.create(jsonTag, false)))))
+        .assertStatusCode(StatusCodes.OK)
+        .assertMediaType("application/cbor")
+        .assertHeaderExists("Vary", "Accept");
+    assertNotEquals(jsonTag, binary.header(ETag.class).etag().tag());
+
+    // エラーもCBORで返す
+    appRoute.run(HttpRequest.POST("/events/RHCP")
+        .withEntity(cborType.toContentType(), cbor.writeValueAsBytes(new EventDescription(3)))
+        .addHeader(Accept.create(MediaRanges.create(cborType))))
+        .assertStatusCode(StatusCodes.BAD_REQUEST)
+        .assertMediaType("application/cbor")
+        .assertEntityBytes(ByteString.fromArray(cbor.writeValueAsBytes(new EventError("RHCP exists already."))));
+  }
+}
@@ -0,0 +1,68 @@
+package com.goticks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// SalesJournal（メモリマップ + グループコミット）とFileOutputStreamへの追記の比較
+// 実行: mvn -Pbench test-compile exec:exec@bench -Dbench=SalesJournalBenchmark
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SalesJournalBenchmark {
+  // この件数ごとにディスクに同期する
+  @Param({"1", "100", "1000"})
+  public int batchSize;
+
+  private Path dir;
+  private SalesJournal journal;
+  private FileOutputStream stream;
+  private final ByteBuffer record = ByteBuffer.allocate(SalesJournal.RECORD_SIZE);
+  private final long eventId = SalesJournal.eventId("RHCP");
+  private int ticket = 0;
+  private int unsynced = 0;
+
+  @Setup(Level.Iteration)
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("sales-bench");
+    journal = new SalesJournal(dir.resolve("sales.journal"), 1 << 20, (id, first, last, timestamp) -> { });
+    stream = new FileOutputStream(dir.resolve("sales.log").toFile(), true);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    journal.close();
+    stream.close();
+    Files.delete(dir.resolve("sales.journal"));
+    Files.delete(dir.resolve("sales.log"));
+    Files.delete(dir);
+  }
+
+  @Benchmark
+  public void mappedJournal() throws IOException {
+    ticket++;
+    journal.append(eventId, ticket, ticket, System.currentTimeMillis());
+    if (journal.pending() >= batchSize)
+      journal.force();
+  }
+
+  @Benchmark
+  public void fileOutputStream() throws IOException {
+    ticket++;
+    record.clear();
+    record.putLong(eventId).putInt(ticket).putInt(ticket).putLong(System.currentTimeMillis());
+    stream.write(record.array());
+    if (++unsynced >= batchSize) {
+      stream.getFD().sync();
+      unsynced = 0;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package com.goticks;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class SalesJournalTest {
+
+  private static Map<Long, Long> soldCounts(Path file) throws Exception {
+    Map<Long, Long> sold = new HashMap<>();
+    SalesJournal.read(file, (eventId, first, last, timestamp) -> sold.merge(eventId, (long) last - first + 1, Long::sum));
+    return sold;
+  }
+
+  @Test
+  public void testAppendAcrossSegmentsAndReopen() throws Exception {
+    Path file = Files.createTempDirectory("sales").resolve("sales.journal");
+    long rhcp = SalesJournal.eventId("RHCP");
+    long muse = SalesJournal.eventId("Muse");
+
+    try (SalesJournal journal = new SalesJournal(file, 4, (eventId, first, last, timestamp) -> { })) {
+      for (int i = 0; i < 10; i++)
+        journal.append(rhcp, i * 2 + 1, i * 2 + 2, 1000L + i);
+      journal.append(muse, 1, 100, 2000L);
+      assertEquals(11, journal.size());
+    }
+
+    Map<Long, Long> sold = soldCounts(file);
+    assertEquals(20L, (long) sold.get(rhcp));
+    assertEquals(100L, (long) sold.get(muse));
+
+    try (SalesJournal journal = new SalesJournal(file, 4, (eventId, first, last, timestamp) -> { })) {
+      assertEquals(11, journal.size());
+      journal.append(muse, 101, 150, 3000L);
+    }
+
+    assertEquals(150L, (long) soldCounts(file).get(muse));
+  }
+}
@@ -0,0 +1,96 @@
+package com.goticks;
+
+import com.goticks.TicketSeller.TicketRange;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TicketInventoryTest {
+
+  @Test
+  public void testTakeFromSingleRange() {
+    TicketInventory inventory = new TicketInventory();
+    inventory.add(1, 500000);
+
+    List<TicketRange> taken = inventory.take(20000);
+    assertEquals(1, taken.size());
+    assertEquals(1, taken.get(0).getFirst());
+    assertEquals(20000, taken.get(0).getLast());
+    assertEquals(480000, inventory.size());
+    assertEquals(1, inventory.ranges().size());
+    assertEquals(20001, inventory.ranges().get(0).getFirst());
+  }
+
+  @Test
+  public void testTakeAcrossRanges() {
+    TicketInventory inventory = new TicketInventory();
+    inventory.add(1, 2);
+    inventory.add(5, 7);
+
+    List<TicketRange> taken = inventory.take(3);
+    assertEquals(2, taken.size());
+    assertEquals(2, taken.get(0).getLast());
+    assertEquals(5, taken.get(1).getFirst());
+    assertEquals(5, taken.get(1).getLast());
+    assertEquals(2, inventory.size());
+  }
+
+  @Test
+  public void testTakeNotEnough() {
+    TicketInventory inventory = new TicketInventory();
+    inventory.add(1, 3);
+
+    assertTrue(inventory.take(4).isEmpty());
+    assertEquals(3, inventory.size());
+  }
+
+  @Test
+  public void testAddMergesAdjacentAndOverlapping() {
+    TicketInventory inventory = new TicketInventory();
+    inventory.add(10, 20);
+    inventory.add(1, 5);
+    inventory.add(6, 9);
+    inventory.add(15, 30);
+
+    assertEquals(1, inventory.ranges().size());
+    assertEquals(1, inventory.ranges().get(0).getFirst());
+    assertEquals(30, inventory.ranges().get(0).getLast());
+    assertEquals(30, inventory.size());
+  }
+
+  @Test
+  public void testRemoveSplitsRanges() {
+    TicketInventory inventory = new TicketInventory();
+    inventory.add(1, 10);
+    inventory.add(20, 30);
+
+    inventory.remove(5, 25);
+    assertEquals(2, inventory.ranges().size());
+    assertEquals(4, inventory.ranges().get(0).getLast());
+    assertEquals(26, inventory.ranges().get(1).getFirst());
+    assertEquals(9, inventory.size());
+  }
+
+  @Test
+  public void testReturnAfterTakeMerges() {
+    TicketInventory inventory = new TicketInventory();
+    inventory.add(1, 100);
+
+    List<TicketRange> taken = inventory.take(10);
+    inventory.take(5);
+    inventory.remove(50, 60);
+    inventory.add(taken.get(0));
+
+    assertEquals(3, inventory.ranges().size());
+    assertEquals(1, inventory.ranges().get(0).getFirst());
+    assertEquals(10, inventory.ranges().get(0).getLast());
+    assertEquals(16, inventory.ranges().get(1).getFirst());
+    assertEquals(49, inventory.ranges().get(1).getLast());
+    assertEquals(61, inventory.ranges().get(2).getFirst());
+    assertEquals(10 + 34 + 40, inventory.size());
+  }
+}
@@ -0,0 +1,95 @@
+package com.goticks;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// 1つの人気イベントに同時に届くBuyを、1件ずつ処理する場合とまとめて処理する場合の比較
+// 実行: mvn -Pbench test-compile exec:exec@bench -Dbench=TicketSellerBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TicketSellerBenchmark {
+  // 1回の操作で同時に送るBuyの数
+  private static final int BURST = 1000;
+
+  // 1の場合は1件ずつ処理する
+  @Param({"1", "100", "1000"})
+  public int buyBatchSize;
+
+  private ActorSystem system;
+  private ActorRef client;
+
+  // 1回分のBURSTを送る依頼（全ての返信を受け取ったらdoneを完了する）
+  private static class Burst {
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+  }
+
+  // BURST件のBuyを一度に送り、すべての返信を受け取ったら完了する
+  private static class Client extends AbstractActor {
+    private final ActorRef seller;
+    private CompletableFuture<Void> done;
+    private int waiting = 0;
+
+    Client(ActorRef seller) {
+      this.seller = seller;
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+          .match(Burst.class, burst -> {
+            done = burst.done;
+            waiting = BURST;
+            for (int i = 0; i < BURST; i++)
+              seller.tell(new TicketSeller.Buy(1), getSelf());
+          })
+          .match(TicketSeller.Tickets.class, tickets -> {
+            if (--waiting == 0)
+              done.complete(null);
+          })
+          .build();
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    Config config = ConfigFactory.parseString(
+        "goticks.ticket-seller.buy-batch-size = " + buyBatchSize)
+        .withFallback(BoxOfficeBenchmark.config());
+    system = ActorSystem.create("seller-bench", config);
+
+    ActorRef seller = system.actorOf(
+        TicketSeller.props("RHCP", "ticket-seller-" + UUID.randomUUID(), Duration.ZERO), "RHCP");
+    seller.tell(new TicketSeller.Add(Collections.singletonList(
+        new TicketSeller.TicketRange(1, Integer.MAX_VALUE - 1))), ActorRef.noSender());
+    client = system.actorOf(Props.create(Client.class, () -> new Client(seller)), "client");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    TestKit.shutdownActorSystem(system);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BURST)
+  public void buy() {
+    Burst burst = new Burst();
+    client.tell(burst, ActorRef.noSender());
+    burst.done.join();
+  }
+}
@@ -0,0 +1,161 @@
+package com.goticks;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+public class TicketSellerTest {
+  private ActorSystem system;
+
+  @Before
+  public void initClass() {
+    system = ActorSystem.create("go-ticks", RestApiTest.inMemoryJournal());
+  }
+
+  @After
+  public void tearDown() {
+    TestKit.shutdownActorSystem(system);
+  }
+
+  @Test
+  public void testBatchedBuys() {
+    TestKit probe = new TestKit(system);
+    ActorRef seller = system.actorOf(
+        TicketSeller.props("RHCP", "ticket-seller-" + UUID.randomUUID(), Duration.ZERO));
+    seller.tell(new TicketSeller.Add(Collections.singletonList(new TicketSeller.TicketRange(1, 5))), probe.getRef());
+
+    // 続けて届いたBuyは在庫から順に割り当てられる
+    seller.tell(new TicketSeller.Buy(2), probe.getRef());
+    seller.tell(new TicketSeller.Buy(2), probe.getRef());
+    seller.tell(new TicketSeller.Buy(2), probe.getRef());
+    seller.tell(new TicketSeller.GetEvent(), probe.getRef());
+
+    // 在庫が足りないBuyには保存を待たずに返信する
+    TicketSeller.Tickets soldOut = probe.expectMsgClass(TicketSeller.Tickets.class);
+    TicketSeller.Tickets first = probe.expectMsgClass(TicketSeller.Tickets.class);
+    TicketSeller.Tickets second = probe.expectMsgClass(TicketSeller.Tickets.class);
+    Optional<?> event = probe.expectMsgClass(Optional.class);
+
+    assertEquals(0, soldOut.getEntries().size());
+    assertEquals(1, first.getEntries().get(0).getId());
+    assertEquals(3, second.getEntries().get(0).getId());
+    assertEquals(1, ((BoxOffice.Event) event.get()).getTickets());
+  }
+
+  // Buyの保存中にキャンセルしても、保存後にビューへ戻らない
+  @Test
+  public void testCancelAfterBuys() {
+    TestKit probe = new TestKit(system);
+    ActorRef seller = system.actorOf(
+        TicketSeller.props("RHCP", "ticket-seller-" + UUID.randomUUID(), Duration.ZERO));
+    seller.tell(new TicketSeller.Add(Collections.singletonList(new TicketSeller.TicketRange(1, 5))), probe.getRef());
+    seller.tell(new TicketSeller.Buy(2), probe.getRef());
+    seller.tell(new TicketSeller.Buy(2), probe.getRef());
+    seller.tell(new TicketSeller.Cancel(), probe.getRef());
+
+    probe.expectMsgClass(TicketSeller.Tickets.class);
+    probe.expectMsgClass(TicketSeller.Tickets.class);
+    Optional<?> cancelled = probe.expectMsgClass(Optional.class);
+    assertEquals(1, ((BoxOffice.Event) cancelled.get()).getTickets());
+    assertFalse(AvailabilityView.get(system).get("RHCP").isPresent());
+  }
+
+  // BoxOfficeに停止を断られても、また一定時間後に停止を依頼する
+  @Test
+  public void testPassivateRefused() {
+    final ActorSystem idle = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.ticket-seller.passivate-after = 200ms").withFallback(RestApiTest.inMemoryJournal()));
+    try {
+      TestKit parent = new TestKit(idle);
+      parent.ignoreMsg(message -> !(message instanceof BoxOffice.Passivate));
+      ActorRef seller = parent.childActorOf(
+          TicketSeller.props("RHCP", "ticket-seller-" + UUID.randomUUID(), Duration.ZERO));
+      seller.tell(new TicketSeller.Add(Collections.singletonList(new TicketSeller.TicketRange(1, 5))), parent.getRef());
+
+      parent.expectMsgClass(Duration.ofSeconds(3), BoxOffice.Passivate.class);
+      seller.tell(new BoxOffice.PassivateRefused("RHCP"), parent.getRef());
+      assertEquals("RHCP", parent.expectMsgClass(Duration.ofSeconds(3), BoxOffice.Passivate.class).getName());
+    } finally {
+      TestKit.shutdownActorSystem(idle);
+    }
+  }
+
+  @Test
+  public void testHolds() {
+    TestKit probe = new TestKit(system);
+    ActorRef seller = system.actorOf(
+        TicketSeller.props("RHCP", "ticket-seller-" + UUID.randomUUID(), Duration.ZERO));
+    seller.tell(new TicketSeller.Add(Collections.singletonList(new TicketSeller.TicketRange(1, 5))), probe.getRef());
+
+    seller.tell(new TicketSeller.Hold(2), probe.getRef());
+    TicketSeller.HoldCreated first = probe.expectMsgClass(TicketSeller.HoldCreated.class);
+    seller.tell(new TicketSeller.Hold(2), probe.getRef());
+    TicketSeller.HoldCreated second = probe.expectMsgClass(TicketSeller.HoldCreated.class);
+    assertEquals(3, second.getTickets().getEntries().get(0).getId());
+
+    // 確定したチケットは売れたまま、取り消したチケットは在庫に戻る
+    seller.tell(new TicketSeller.Confirm(first.getId()), probe.getRef());
+    assertEquals(2, ((TicketSeller.Tickets) probe.expectMsgClass(Optional.class).get()).size());
+    seller.tell(new TicketSeller.Release(second.getId()), probe.getRef());
+    assertEquals(2, ((TicketSeller.Tickets) probe.expectMsgClass(Optional.class).get()).size());
+    seller.tell(new TicketSeller.Confirm(second.getId()), probe.getRef());
+    assertEquals(Optional.empty(), probe.expectMsgClass(Optional.class));
+
+    seller.tell(new TicketSeller.GetEvent(), probe.getRef());
+    assertEquals(3, ((BoxOffice.Event) probe.expectMsgClass(Optional.class).get()).getTickets());
+  }
+
+  @Test
+  public void testHoldsExpire() {
+    final ActorSystem shortHolds = ActorSystem.create("go-ticks", ConfigFactory.parseString(
+        "goticks.ticket-seller.holds { ttl = 200ms, tick = 50ms }").withFallback(RestApiTest.inMemoryJournal()));
+    try {
+      TestKit probe = new TestKit(shortHolds);
+      ActorRef seller = shortHolds.actorOf(
+          TicketSeller.props("RHCP", "ticket-seller-" + UUID.randomUUID(), Duration.ZERO));
+      seller.tell(new TicketSeller.Add(Collections.singletonList(new TicketSeller.TicketRange(1, 5))), probe.getRef());
+      seller.tell(new TicketSeller.Hold(5), probe.getRef());
+      TicketSeller.HoldCreated held = probe.expectMsgClass(TicketSeller.HoldCreated.class);
+
+      // 期限が過ぎると在庫に戻り、確定できなくなる
+      probe.awaitAssert(Duration.ofSeconds(3), () -> {
+        seller.tell(new TicketSeller.GetEvent(), probe.getRef());
+        assertEquals(5, ((BoxOffice.Event) probe.expectMsgClass(Optional.class).get()).getTickets());
+        return null;
+      });
+      seller.tell(new TicketSeller.Confirm(held.getId()), probe.getRef());
+      assertEquals(Optional.empty(), probe.expectMsgClass(Optional.class));
+    } finally {
+      TestKit.shutdownActorSystem(shortHolds);
+    }
+  }
+
+  @Test
+  public void testTicketsEntries() {
+    TicketSeller.Tickets tickets = new TicketSeller.Tickets("RHCP", Arrays.asList(
+        new TicketSeller.TicketRange(1, 2), new TicketSeller.TicketRange(5, 5)));
+
+    List<Integer> ids = new ArrayList<>();
+    tickets.getEntries().forEach(ticket -> ids.add(ticket.getId()));
+    assertEquals(Arrays.asList(1, 2, 5), ids);
+    assertEquals(3, tickets.size());
+    assertEquals("TicketSeller.Tickets[event=RHCP,ranges=[TicketSeller.TicketRange[first=1,last=2], " +
+        "TicketSeller.TicketRange[first=5,last=5]]]", tickets.toString());
+  }
+}
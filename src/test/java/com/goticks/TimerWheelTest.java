@@ -0,0 +1,48 @@
+package com.goticks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class TimerWheelTest {
+
+  @Test
+  public void testExpireAfterDeadline() {
+    TimerWheel<Long> wheel = new TimerWheel<>(100, 8, 0);
+    wheel.schedule(1L, 250);
+    wheel.schedule(2L, 300);
+    wheel.schedule(3L, 1000);
+
+    List<Long> expired = new ArrayList<>();
+    wheel.expire(299, expired::add);
+    assertEquals(Collections.emptyList(), expired);
+
+    wheel.expire(300, expired::add);
+    assertEquals(Arrays.asList(1L, 2L), expired);
+    assertEquals(1, wheel.size());
+  }
+
+  @Test
+  public void testDeadlinesBeyondOneRevolution() {
+    // 8スロット x 100ms を超える期限は、スロットを何周かした後に取り出す
+    TimerWheel<Long> wheel = new TimerWheel<>(100, 8, 0);
+    wheel.schedule(1L, 2500);
+
+    List<Long> expired = new ArrayList<>();
+    for (long now = 0; now < 2500; now += 100)
+      wheel.expire(now, expired::add);
+    assertEquals(Collections.emptyList(), expired);
+
+    // 長い間隔を空けて呼んでも取りこぼさない
+    wheel.schedule(2L, 2600);
+    wheel.expire(10000, expired::add);
+    assertEquals(Arrays.asList(1L, 2L), expired);
+    assertEquals(0, wheel.size());
+  }
+}
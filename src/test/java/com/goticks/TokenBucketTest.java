@@ -0,0 +1,38 @@
+package com.goticks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TokenBucketTest {
+  private static final long SECOND = 1000000000L;
+
+  @Test
+  public void testBurstThenRate() {
+    TokenBucket bucket = new TokenBucket(10, 3, 0);
+
+    assertTrue(bucket.tryAcquire(0));
+    assertTrue(bucket.tryAcquire(0));
+    assertTrue(bucket.tryAcquire(0));
+    assertFalse(bucket.tryAcquire(0));
+    assertEquals(SECOND / 10, bucket.nanosUntilAvailable(0));
+
+    assertTrue(bucket.tryAcquire(SECOND / 10));
+    assertFalse(bucket.tryAcquire(SECOND / 10));
+  }
+
+  @Test
+  public void testRefillIsCappedAtBurst() {
+    TokenBucket bucket = new TokenBucket(100, 2, 0);
+    assertTrue(bucket.tryAcquire(0));
+    assertTrue(bucket.tryAcquire(0));
+
+    // 長く待ってもburst個までしか溜まらない
+    assertTrue(bucket.tryAcquire(10 * SECOND));
+    assertTrue(bucket.tryAcquire(10 * SECOND));
+    assertFalse(bucket.tryAcquire(10 * SECOND));
+  }
+}
@@ -0,0 +1,63 @@
+package com.goticks;
+
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class WaitingRoomTest {
+
+  @Test
+  public void testAdmitInBatches() {
+    WaitingRoom room = new WaitingRoom(2, 10);
+    assertFalse(room.join("RHCP").isPresent());
+    assertTrue(room.open("RHCP"));
+
+    String first = room.join("RHCP").get().getToken();
+    String second = room.join("RHCP").get().getToken();
+    String third = room.join("RHCP").get().getToken();
+    assertEquals(3, room.position("RHCP", third).get().getPosition());
+    assertFalse(room.enter("RHCP", first));
+
+    // 並んだ順に2人ずつ許可する
+    room.admit();
+    assertTrue(room.position("RHCP", second).get().isAdmitted());
+    assertEquals(1, room.position("RHCP", third).get().getPosition());
+    assertFalse(room.enter("RHCP", third));
+
+    // 購入中のトークンでは入れず、購入できたトークンは1度しか使えない
+    assertTrue(room.enter("RHCP", first));
+    assertFalse(room.enter("RHCP", first));
+    room.leave("RHCP", first, true);
+    assertFalse(room.enter("RHCP", first));
+    assertFalse(room.position("RHCP", first).isPresent());
+
+    // 購入できなかったトークンはもう一度使える
+    assertTrue(room.enter("RHCP", second));
+    room.leave("RHCP", second, false);
+    assertTrue(room.enter("RHCP", second));
+
+    room.admit();
+    assertTrue(room.enter("RHCP", third));
+  }
+
+  @Test
+  public void testAdmittedTokensExpire() {
+    WaitingRoom room = new WaitingRoom(1, 2);
+    room.open("RHCP");
+    String token = room.join("RHCP").get().getToken();
+
+    room.admit();
+    room.admit();
+    assertTrue(room.position("RHCP", token).get().isAdmitted());
+
+    // 許可されてから2回admit()が呼ばれる間に購入しなかった
+    room.admit();
+    assertEquals(Optional.empty(), room.position("RHCP", token));
+    assertFalse(room.enter("RHCP", token));
+  }
+}